@@ -0,0 +1,111 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per route-group concurrency budgets. Every context gets the filter of its group; a request
+ * that finds the budget exhausted waits up to the group's deadline and is then shed with
+ * 503 + Retry-After. Groups have independent budgets, so a burst of uploads can never take
+ * the slots exam question delivery needs.
+ *
+ * Limits are tunable per group: -Dvlab.admission.upload.limit=4 -Dvlab.admission.upload.waitMs=2000
+ */
+public class AdmissionControl {
+
+    public enum RouteGroup {
+        UPLOAD(4, 2000),     // multipart / raw body uploads
+        MEDIA(16, 1000),     // video and material streaming
+        INGEST(32, 5000),    // small exam recording chunk appends
+        EXAM(64, 3000),      // student exam API
+        TEACHER(16, 2000),   // teacher and admin API
+        STATIC(64, 1000),    // html pages and css
+        GENERAL(32, 1000);   // login, quiz, experiment calculators
+
+        final int defaultLimit;
+        final int defaultWaitMs;
+
+        RouteGroup(int defaultLimit, int defaultWaitMs) { this.defaultLimit = defaultLimit; this.defaultWaitMs = defaultWaitMs; }
+
+        public static RouteGroup classify(String path) {
+            if (path.equals("/api/teacher/upload_video") || path.equals("/api/teacher/upload_material")
+                    || path.equals("/api/test/upload_video") || path.equals("/api/user/uploadavatar")) return UPLOAD;
+            if (path.equals("/api/test/video_chunk") || path.equals("/api/test/video_finalize")) return INGEST;
+            if (path.startsWith("/videos/") || path.startsWith("/files/") || path.equals("/materials/download")
+                    || path.startsWith("/api/test/video/")) return MEDIA;
+            if (path.startsWith("/api/test/")) return EXAM;
+            if (path.startsWith("/api/teacher/") || path.startsWith("/api/admin/")) return TEACHER;
+            if (path.startsWith("/api/") || path.startsWith("/get") || path.startsWith("/submit")
+                    || path.startsWith("/calculate") || path.equals("/login") || path.equals("/register")) return GENERAL;
+            return STATIC;
+        }
+    }
+
+    private final Map<RouteGroup, Budget> budgets = new EnumMap<>(RouteGroup.class);
+
+    public AdmissionControl() {
+        for (RouteGroup g : RouteGroup.values()) {
+            String key = "vlab.admission." + g.name().toLowerCase();
+            budgets.put(g, new Budget(g, Integer.getInteger(key + ".limit", g.defaultLimit), Integer.getInteger(key + ".waitMs", g.defaultWaitMs)));
+        }
+    }
+
+    public Filter filterFor(String path) {
+        return budgets.get(RouteGroup.classify(path));
+    }
+
+    private static class Budget extends Filter {
+        private final String name;
+        private final Semaphore permits;
+        private final int waitMs;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final LongAdder rejected;
+        private final LongAdder queued;
+        private final LongAdder queueMicros;
+
+        Budget(RouteGroup group, int limit, int waitMs) {
+            this.name = group.name().toLowerCase();
+            this.permits = new Semaphore(limit, true);
+            this.waitMs = waitMs;
+            String prefix = "admission." + name + ".";
+            this.rejected = ServerMetrics.counter(prefix + "rejected");
+            this.queued = ServerMetrics.counter(prefix + "queued");
+            this.queueMicros = ServerMetrics.counter(prefix + "queue_micros");
+            ServerMetrics.gauge(prefix + "waiting", waiting::get);
+            ServerMetrics.gauge(prefix + "in_flight", () -> limit - permits.availablePermits());
+        }
+
+        @Override
+        public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+            if (!permits.tryAcquire() && !await()) {
+                rejected.increment();
+                ex.getResponseHeaders().set("Retry-After", String.valueOf(Math.max(1, waitMs / 1000)));
+                ex.sendResponseHeaders(503, -1);
+                ex.close();
+                return;
+            }
+            try { chain.doFilter(ex); }
+            finally { permits.release(); }
+        }
+
+        private boolean await() {
+            queued.increment();
+            waiting.incrementAndGet();
+            long start = System.nanoTime();
+            try { return permits.tryAcquire(waitMs, TimeUnit.MILLISECONDS); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return false; }
+            finally {
+                waiting.decrementAndGet();
+                queueMicros.add((System.nanoTime() - start) / 1000);
+            }
+        }
+
+        @Override
+        public String description() { return "admission control (" + name + ")"; }
+    }
+}
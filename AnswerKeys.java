@@ -0,0 +1,94 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Exam answer keys as bitsets. Position i of a test's frozen pool owns bits 4i..4i+3, one per
+ * option; the key sets the correct option's bit and a submission sets the chosen one, so a score
+ * is the popcount of the two ANDed, sixteen questions per long. A question deleted from the bank
+ * has no key bit and counts for nobody. Keys are cached per test against the pool and bank
+ * versions, the same check ExamCache makes for papers.
+ */
+class AnswerKeys {
+
+    /** questionIds and chosen are the submitted responses that belong to the pool, the ones worth storing. */
+    record Grade(int score, int total, int[] questionIds, byte[] chosen) {}
+
+    record Key(long stamp, long generation, Map<Integer, Integer> positions, long[] bits, int total) {
+        boolean current(long stamp, long generation) { return this.stamp == stamp && this.generation == generation; }
+
+        /**
+         * The chosen options packed like the key; ids outside the pool and options outside 0-3 are
+         * ignored. A question listed twice keeps its last choice, so it can never hold two bits.
+         */
+        long[] answers(int[] questionIds, byte[] chosen) {
+            long[] out = new long[bits.length];
+            if (questionIds == null || chosen == null) return out;
+            for (int i = 0; i < questionIds.length && i < chosen.length; i++) {
+                Integer p = positions.get(questionIds[i]);
+                if (p == null) continue;
+                out[p >>> 4] &= ~(0xFL << ((p & 15) * 4)); // a position's four bits never straddle a long
+                if (chosen[i] >= 0 && chosen[i] < 4) set(out, p * 4 + chosen[i]);
+            }
+            return out;
+        }
+
+        Grade grade(int[] questionIds, byte[] chosen) {
+            int score = score(answers(questionIds, chosen));
+            if (questionIds == null || chosen == null) return new Grade(score, total, null, null);
+            int n = Math.min(questionIds.length, chosen.length), kept = 0;
+            int[] ids = new int[n];
+            byte[] picks = new byte[n];
+            for (int i = 0; i < n; i++) {
+                if (!positions.containsKey(questionIds[i])) continue;
+                ids[kept] = questionIds[i];
+                picks[kept++] = chosen[i];
+            }
+            return new Grade(score, total, Arrays.copyOf(ids, kept), Arrays.copyOf(picks, kept));
+        }
+
+        int score(long[] answers) {
+            int score = 0;
+            for (int w = 0; w < bits.length; w++) score += Long.bitCount(bits[w] & answers[w]);
+            return score;
+        }
+    }
+
+    private static final String[] TABLES = {"scheduled_tests", "test_questions"};
+
+    private final TableVersions versions;
+    private final QuestionIndex index;
+    private final IntFunction<int[]> pools;
+    private final ConcurrentHashMap<Integer, Key> keys = new ConcurrentHashMap<>();
+
+    AnswerKeys(TableVersions versions, QuestionIndex index, IntFunction<int[]> pools) {
+        this.versions = versions;
+        this.index = index;
+        this.pools = pools;
+    }
+
+    // Stamps are read before the pool and the bank, so an edit made meanwhile forces another build.
+    Key key(int testId) {
+        long stamp = versions.version(TABLES), generation = index.generation();
+        Key key = keys.get(testId);
+        if (key != null && key.current(stamp, generation)) return key;
+        int[] pool = pools.apply(testId);
+        Map<Integer, Integer> positions = new HashMap<>(pool.length * 2);
+        long[] bits = new long[(pool.length * 4 + 63) / 64];
+        int total = 0;
+        for (int i = 0; i < pool.length; i++) {
+            positions.put(pool[i], i);
+            QuestionIndex.TestItem item = index.test(pool[i]);
+            if (item == null || item.correctIndex() < 0 || item.correctIndex() > 3) continue;
+            set(bits, i * 4 + item.correctIndex());
+            total++;
+        }
+        key = new Key(stamp, generation, Map.copyOf(positions), bits, total);
+        keys.put(testId, key);
+        return key;
+    }
+
+    private static void set(long[] bits, int bit) { bits[bit >>> 6] |= 1L << (bit & 63); }
+}
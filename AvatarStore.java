@@ -0,0 +1,147 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Profile pictures as content-addressed JPEG thumbnails on disk. An upload is decoded once,
+ * cropped to a centred square and scaled to every SIZES entry; the files are named after the
+ * SHA-256 of the uploaded bytes, so users.avatar only holds that hash and a URL, once issued,
+ * never changes content and /avatars/ can serve it with an immutable one-year Cache-Control.
+ */
+public class AvatarStore {
+
+    public static final int[] SIZES = {64, 256};
+    private static final Pattern NAME = Pattern.compile("[0-9a-f]{32}-(64|256)\\.jpg");
+    private static final int MAX_PIXELS = 40_000_000; // refuse to decode anything larger, whatever the file size
+
+    private final Path dir;
+    private final long maxUploadBytes;
+
+    public AvatarStore(Path dir, long maxUploadBytes) {
+        this.dir = dir;
+        this.maxUploadBytes = maxUploadBytes;
+    }
+
+    public static AvatarStore fromSystemProperties() {
+        return new AvatarStore(Paths.get(System.getProperty("vlab.avatars.dir", "avatars")), Long.getLong("vlab.avatars.maxUploadBytes", 8L * 1024 * 1024));
+    }
+
+    public long maxUploadBytes() { return maxUploadBytes; }
+
+    /** The URL of a stored avatar's thumbnail, or "" when the user has none. */
+    public static String url(String hash, int size) {
+        return hash == null || hash.isEmpty() ? "" : "/avatars/" + hash + "-" + size + ".jpg";
+    }
+
+    /**
+     * Stores an upload given as a data: URL or bare base64 and returns its hash. Returns null if
+     * the payload is not an image ImageIO can read.
+     */
+    public String store(String dataUrl) throws IOException {
+        byte[] bytes;
+        try { bytes = Base64.getMimeDecoder().decode(dataUrl.substring(dataUrl.indexOf(',') + 1).trim()); }
+        catch (IllegalArgumentException e) { return null; }
+        String hash = StaticAssetCache.sha256Hex(bytes).substring(0, 32);
+        boolean complete = true;
+        for (int size : SIZES) complete &= Files.exists(dir.resolve(hash + "-" + size + ".jpg"));
+        if (complete) return hash; // same picture uploaded before
+
+        BufferedImage source = decode(bytes);
+        if (source == null) return null;
+        Files.createDirectories(dir);
+        for (int size : SIZES) {
+            Path target = dir.resolve(hash + "-" + size + ".jpg");
+            Path tmp = dir.resolve(hash + "-" + size + "." + Thread.currentThread().getId() + ".tmp");
+            ImageIO.write(thumbnail(source, size), "jpg", tmp.toFile());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return hash;
+    }
+
+    /** The thumbnail file for a /avatars/ name such as {hash}-64.jpg, or null if there is none. */
+    public File file(String name) throws IOException {
+        return NAME.matcher(name).matches() ? FileStreamer.resolve(dir.toString(), name) : null;
+    }
+
+    /**
+     * Moves base64 avatars still stored inline in users.avatar into the store; unreadable ones are
+     * cleared. Runs with autocommit on: images are decoded with no transaction open, and each row
+     * is rewritten on its own once its files are written, so an interrupted run just resumes.
+     */
+    static int migrateInline(Connection conn, AvatarStore store) throws SQLException {
+        List<String[]> inline = new ArrayList<>();
+        try (Statement select = conn.createStatement(); ResultSet rs = select.executeQuery("SELECT username, avatar FROM users WHERE length(avatar) > 32")) {
+            while (rs.next()) inline.add(new String[] {rs.getString(1), rs.getString(2)});
+        }
+        int moved = 0;
+        try (PreparedStatement update = conn.prepareStatement("UPDATE users SET avatar = ? WHERE username = ?")) {
+            for (String[] user : inline) {
+                String hash;
+                try { hash = store.store(user[1]); }
+                catch (IOException e) { e.printStackTrace(); hash = null; }
+                update.setString(1, hash == null ? "" : hash);
+                update.setString(2, user[0]);
+                update.executeUpdate();
+                if (hash != null) moved++;
+            }
+        }
+        return moved;
+    }
+
+    // Reads the header first so a small file claiming huge dimensions is rejected before decoding.
+    private static BufferedImage decode(byte[] bytes) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) return null;
+                return reader.read(0);
+            } catch (IOException | RuntimeException e) {
+                return null; // truncated or corrupt image
+            } finally { reader.dispose(); }
+        }
+    }
+
+    // Centre square crop flattened onto white (JPEG has no alpha), then halved until close to size
+    // and finished with one bicubic pass; a single large step would alias.
+    private static BufferedImage thumbnail(BufferedImage source, int size) {
+        int side = Math.min(source.getWidth(), source.getHeight());
+        int x = (source.getWidth() - side) / 2, y = (source.getHeight() - side) / 2;
+        BufferedImage img = source;
+        int from = side;
+        while (side / 2 >= size) {
+            side /= 2;
+            img = scale(img, x, y, from, side);
+            x = y = 0; from = side;
+        }
+        return side == size && img != source ? img : scale(img, x, y, from, size);
+    }
+
+    private static BufferedImage scale(BufferedImage source, int x, int y, int side, int to) {
+        BufferedImage out = new BufferedImage(to, to, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, to, to);
+        g.drawImage(source, 0, 0, to, to, x, y, x + side, y + side, null);
+        g.dispose();
+        return out;
+    }
+}
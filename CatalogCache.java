@@ -0,0 +1,87 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serialized JSON for the catalog endpoints (lectures, materials, experiments, question banks).
+ * Each endpoint keeps its last response as UTF-8 bytes together with the TableVersions stamp of
+ * the tables it was built from; the bytes are served until one of those tables changes. The
+ * stamp doubles as the ETag, so an unchanged catalog costs the browser a 304.
+ */
+public class CatalogCache {
+
+    private record Entry(long stamp, byte[] body, String etag) {}
+
+    private static class Slot {
+        volatile Entry entry;
+        final LongAdder hits, misses, notModified;
+        Slot(String key) {
+            hits = ServerMetrics.counter("catalog." + key + ".hits");
+            misses = ServerMetrics.counter("catalog." + key + ".misses");
+            notModified = ServerMetrics.counter("catalog." + key + ".not_modified");
+        }
+    }
+
+    private final TableVersions versions;
+    // stamps restart at zero with the process, so the tag carries the start time too
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+    CatalogCache(TableVersions versions) { this.versions = versions; }
+
+    /** Serves the endpoint's JSON, rebuilding it with build only if one of tables changed since it was cached. */
+    public void serve(HttpExchange ex, String key, JsonStreamWriter.Source build, String... tables) throws IOException {
+        Slot slot = slots.computeIfAbsent(key, Slot::new);
+        Entry entry;
+        // a failed build is not stored, so the next request tries again
+        try { entry = current(slot, key, build, tables, true); }
+        catch (IOException e) { e.printStackTrace(); ex.sendResponseHeaders(500, -1); ex.close(); return; }
+
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.getResponseHeaders().set("ETag", entry.etag());
+        ex.getResponseHeaders().set("Cache-Control", "no-cache");
+        String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && matches(ifNoneMatch, entry.etag())) {
+            slot.notModified.increment();
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return;
+        }
+        ex.sendResponseHeaders(200, entry.body().length);
+        try (OutputStream os = ex.getResponseBody()) { os.write(entry.body()); }
+    }
+
+    /** Builds the entry ahead of the first request if it is missing or out of date; not counted as a hit or miss. */
+    public void warm(String key, JsonStreamWriter.Source build, String... tables) throws IOException {
+        current(slots.computeIfAbsent(key, Slot::new), key, build, tables, false);
+    }
+
+    private Entry current(Slot slot, String key, JsonStreamWriter.Source build, String[] tables, boolean count) throws IOException {
+        long stamp = versions.version(tables);
+        Entry entry = slot.entry;
+        if (entry != null && entry.stamp() == stamp) { if (count) slot.hits.increment(); return entry; }
+        synchronized (slot) {
+            entry = slot.entry;
+            if (entry != null && entry.stamp() == stamp) { if (count) slot.hits.increment(); return entry; }
+            if (count) slot.misses.increment();
+            // the stamp was read before the build, so a change made meanwhile forces another rebuild
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (JsonStreamWriter json = new JsonStreamWriter(body)) { build.writeTo(json); }
+            entry = new Entry(stamp, body.toByteArray(), "\"" + key + "-" + epoch + "-" + stamp + "\"");
+            slot.entry = entry;
+            return entry;
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,184 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQLite connections for DatabaseManager: one writer connection behind a reentrant lock and a
+ * small pool of read-only connections. The database runs in WAL mode, so readers never block
+ * the writer or each other. Handed-out connections are proxies; close() returns the physical
+ * connection (closing any statements left open) instead of closing the file.
+ *
+ * Readers are validated after sitting idle and replaced after a number of uses.
+ * Tunables: -Dvlab.db.readers=4 -Dvlab.db.waitMs=5000 -Dvlab.db.busyTimeoutMs=5000
+ */
+class ConnectionPool {
+
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 30_000;
+    private static final int MAX_USES = 10_000;
+
+    private final String url;
+    private final int busyTimeoutMs;
+    private final long waitMillis;
+    private final BlockingQueue<Pooled> idleReaders;
+    private final Pooled writer;
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final List<Runnable> writerReleaseHooks = new CopyOnWriteArrayList<>();
+
+    private final LongAdder readAcquired = ServerMetrics.counter("db.pool.read.acquired");
+    private final LongAdder readWaitMicros = ServerMetrics.counter("db.pool.read.wait_micros");
+    private final LongAdder writeAcquired = ServerMetrics.counter("db.pool.write.acquired");
+    private final LongAdder writeWaitMicros = ServerMetrics.counter("db.pool.write.wait_micros");
+    private final LongAdder timeouts = ServerMetrics.counter("db.pool.timeouts");
+    private final LongAdder recycled = ServerMetrics.counter("db.pool.recycled");
+
+    /** A physical connection and its bookkeeping. */
+    private static class Pooled {
+        Connection conn;
+        long lastUsed = System.currentTimeMillis();
+        int uses;
+        Pooled(Connection conn) { this.conn = conn; }
+    }
+
+    ConnectionPool(String url, int readers, long waitMillis, int busyTimeoutMs) throws SQLException {
+        this.url = url;
+        this.waitMillis = waitMillis;
+        this.busyTimeoutMs = busyTimeoutMs;
+        this.writer = new Pooled(open(false)); // opened first so the file is in WAL mode before readers attach
+        this.idleReaders = new ArrayBlockingQueue<>(readers);
+        for (int i = 0; i < readers; i++) idleReaders.add(new Pooled(open(true)));
+        ServerMetrics.gauge("db.pool.readers.idle", idleReaders::size);
+        ServerMetrics.gauge("db.pool.readers.in_use", () -> readers - idleReaders.size());
+        ServerMetrics.gauge("db.pool.write.waiting", writeLock::getQueueLength);
+    }
+
+    static ConnectionPool fromSystemProperties(String url) throws SQLException {
+        return new ConnectionPool(url, Integer.getInteger("vlab.db.readers", Math.max(2, Runtime.getRuntime().availableProcessors())),
+                                  Long.getLong("vlab.db.waitMs", 5000), Integer.getInteger("vlab.db.busyTimeoutMs", 5000));
+    }
+
+    private Connection open(boolean readOnly) throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("busy_timeout", String.valueOf(busyTimeoutMs));
+        if (readOnly) props.setProperty("open_mode", "1"); // SQLITE_OPEN_READONLY
+        else props.setProperty("journal_mode", "WAL");
+        return DriverManager.getConnection(url, props);
+    }
+
+    /** The writer connection; callers queue on a fair lock. Re-entrant for nested calls on the same thread. */
+    Connection writer() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!writeLock.tryLock(waitMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLException("Timed out waiting for the database writer");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for the database writer", e);
+        }
+        writeWaitMicros.add((System.nanoTime() - start) / 1000);
+        writeAcquired.increment();
+        return proxy(writer, () -> {
+            try {
+                // only the outermost release may end an abandoned transaction
+                if (writeLock.getHoldCount() == 1) {
+                    if (!writer.conn.getAutoCommit()) { writer.conn.rollback(); writer.conn.setAutoCommit(true); }
+                    for (Runnable hook : writerReleaseHooks) hook.run();
+                }
+            } catch (SQLException | RuntimeException e) { e.printStackTrace(); }
+            finally { writeLock.unlock(); }
+        });
+    }
+
+    /** Runs on the writing thread after each outermost writer release, while the lock is still held. */
+    void onWriterReleased(Runnable hook) { writerReleaseHooks.add(hook); }
+
+    /** A read-only connection. A thread that already holds the writer reads through it, so it sees its own changes. */
+    Connection reader() throws SQLException {
+        if (writeLock.isHeldByCurrentThread()) return writer();
+        long start = System.nanoTime();
+        Pooled p;
+        try { p = idleReaders.poll(waitMillis, TimeUnit.MILLISECONDS); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new SQLException("Interrupted waiting for a database reader", e); }
+        if (p == null) {
+            timeouts.increment();
+            throw new SQLException("Timed out waiting for a database reader");
+        }
+        readWaitMicros.add((System.nanoTime() - start) / 1000);
+        readAcquired.increment();
+        try {
+            checkOut(p);
+        } catch (SQLException e) {
+            idleReaders.add(p);
+            throw e;
+        }
+        return proxy(p, () -> idleReaders.add(p));
+    }
+
+    private void checkOut(Pooled p) throws SQLException {
+        long now = System.currentTimeMillis();
+        boolean stale = p.uses >= MAX_USES || p.conn.isClosed()
+                || (now - p.lastUsed > VALIDATE_AFTER_IDLE_MILLIS && !p.conn.isValid(1));
+        if (stale) {
+            try { p.conn.close(); } catch (SQLException e) { /* replacing it anyway */ }
+            p.conn = open(true);
+            p.uses = 0;
+            recycled.increment();
+        }
+        p.uses++;
+        p.lastUsed = now;
+    }
+
+    private Connection proxy(Pooled p, Runnable release) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new Lease(p.conn, release));
+    }
+
+    /** One borrowing of a connection. Tracks statements so a forgotten one cannot leak into the next lease. */
+    private static class Lease implements InvocationHandler {
+        private final Connection conn;
+        private final Runnable release;
+        private final List<Statement> statements = new ArrayList<>();
+        private boolean closed;
+
+        Lease(Connection conn, Runnable release) { this.conn = conn; this.release = release; }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        for (Statement s : statements) { try { s.close(); } catch (SQLException e) { /* already gone */ } }
+                        release.run();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (closed) throw new SQLException("Connection already returned to the pool");
+            }
+            try {
+                Object result = method.invoke(conn, args);
+                if (result instanceof Statement) statements.add((Statement) result);
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
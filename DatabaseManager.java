@@ -1,35 +1,98 @@
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class DatabaseManager {
 
     private String dbUrl = "jdbc:sqlite:virtual_lab.db"; 
 
-    private Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(dbUrl);
+    // Queries on request hot paths; setupDatabase refuses to start if any of them needs a full table scan.
+    static final String SQL_USER = "SELECT * FROM users WHERE username = ?";
+    static final String SQL_PERFORMANCE_BY_STUDENT = "SELECT * FROM quiz_performance WHERE student_username = ? ORDER BY id DESC LIMIT ?";
+    static final String SQL_TEST_TAKEN = "SELECT COUNT(*) as count FROM test_results WHERE test_id=? AND student_username=? AND status='completed'";
+    static final String SQL_STUDENT_TEST_RESULTS = "SELECT tr.*, st.title as test_title FROM test_results tr LEFT JOIN scheduled_tests st ON tr.test_id = st.id WHERE tr.student_username=? AND tr.status='completed' ORDER BY tr.end_time DESC";
+    static final String SQL_TEST_RESULT_OWNER = "SELECT student_username FROM test_results WHERE id=?";
+    static final String SQL_IN_PROGRESS = "SELECT tr.id, tr.test_id, tr.student_username, tr.start_time, COALESCE(st.duration_minutes, 0) FROM test_results tr " +
+        "LEFT JOIN scheduled_tests st ON st.id = tr.test_id WHERE tr.status='in_progress'";
+    static final String SQL_IN_PROGRESS_BY_ID = SQL_IN_PROGRESS + " AND tr.id=?";
+    static final String SQL_IN_PROGRESS_BY_STUDENT = SQL_IN_PROGRESS + " AND tr.test_id=? AND tr.student_username=?";
+    static final String SQL_ACTIVE_TESTS = "SELECT * FROM scheduled_tests WHERE status IN ('scheduled', 'active') ORDER BY scheduled_date, scheduled_time";
+    static final String SQL_START_ATTEMPT = "INSERT INTO test_results (test_id, student_username, student_name, score, total, start_time, status) " +
+        "SELECT id, ?2, ?3, 0, 0, ?4, 'in_progress' FROM scheduled_tests WHERE id = ?1 " +
+        "ON CONFLICT (test_id, student_username) DO UPDATE SET student_name = excluded.student_name WHERE test_results.status = 'in_progress' " +
+        "RETURNING id, start_time, (SELECT duration_minutes FROM scheduled_tests WHERE scheduled_tests.id = test_results.test_id)";
+    static final Map<String, String> HOT_QUERIES = Map.ofEntries(
+        Map.entry("getUser", SQL_USER),
+        Map.entry("getPerformance", SQL_PERFORMANCE_BY_STUDENT),
+        Map.entry("hasStudentTakenTest", SQL_TEST_TAKEN),
+        Map.entry("getStudentTestResults", SQL_STUDENT_TEST_RESULTS),
+        Map.entry("getTestResultOwner", SQL_TEST_RESULT_OWNER),
+        Map.entry("getActiveTestsForStudent", SQL_ACTIVE_TESTS),
+        Map.entry("getInProgressTest", SQL_IN_PROGRESS_BY_ID),
+        Map.entry("getInProgressTestByStudent", SQL_IN_PROGRESS_BY_STUDENT),
+        Map.entry("getPerformancePage", performancePageSql(new PageQuery(null, null, 0, null, null, "", 1, 50), new ArrayList<>())),
+        Map.entry("getPerformancePageByTopic", performancePageSql(new PageQuery(null, "physics", 0, null, null, "", 1, 50), new ArrayList<>())),
+        Map.entry("getPerformancePageByDate", performancePageSql(new PageQuery(null, null, 0, "2000-01-01", "2000-01-08", null, -1, 50), new ArrayList<>())),
+        Map.entry("getTestResultsPage", testResultsPageSql(new PageQuery(null, null, 0, null, null, "2000-01-01", 1, 50), new ArrayList<>())),
+        Map.entry("getTestResultsPageByTest", testResultsPageSql(new PageQuery(null, null, 1, null, null, "2000-01-01", 1, 50), new ArrayList<>())));
+
+    private ConnectionPool pool;
+    private WriteQueue writes;
+    private TableVersions tableVersions;
+    private ScoreAnalytics analytics;
+    private ItemAnalysis itemAnalysis;
+    private AnswerKeys answerKeys;
+    private TestRegrader regrader;
+    // Re-grades triggered by question edits run here, one at a time, off the request thread.
+    private final java.util.concurrent.ExecutorService regrades = java.util.concurrent.Executors.newSingleThreadExecutor(r -> { Thread t = new Thread(r, "regrade"); t.setDaemon(true); return t; });
+    // Question banks are served from memory; every edit through this class rebuilds the affected half.
+    private final QuestionIndex questionIndex = new QuestionIndex();
+    // Frozen pools by test id, valid while scheduled_tests is unchanged.
+    private record FrozenPool(long stamp, int[] ids) {}
+
+    /** The attempt a start request landed on; resumed when it was already in progress. */
+    public record TestAttempt(int resultId, String startTime, int durationMinutes, boolean resumed) {}
+    /** An exam attempt still running, with what ExamTimers needs to rebuild its deadline. */
+    public record InProgressTest(int resultId, int testId, String username, String startTime, int durationMinutes) {}
+    private final Map<Integer, FrozenPool> pools = new java.util.concurrent.ConcurrentHashMap<>();
+
+    // Readers come from the read-only WAL pool; anything that modifies the database takes the single writer.
+    private Connection reader() throws SQLException { return pool.reader(); }
+    private Connection writer() throws SQLException { return pool.writer(); }
+
+    // Hot inserts go through the group-commit queue; DEFERRED writes return without waiting for the commit.
+    private <T> T queued(WriteQueue.Durability durability, WriteQueue.Op<T> op, T fallback) {
+        CompletableFuture<T> f = writes.submit(durability, op);
+        if (durability == WriteQueue.Durability.DEFERRED) {
+            f.exceptionally(e -> { e.printStackTrace(); return null; });
+            return fallback;
+        }
+        try { return f.join(); } catch (CompletionException e) { e.getCause().printStackTrace(); return fallback; }
     }
 
+    /** Change stamps per table, for caches of query results. */
+    TableVersions tableVersions() { return tableVersions; }
+
     public void setupDatabase() {
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
-            // 1. Create Tables
-            stmt.execute("CREATE TABLE IF NOT EXISTS users (username TEXT PRIMARY KEY, password TEXT, role TEXT, full_name TEXT, avatar TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS quiz_performance (id INTEGER PRIMARY KEY AUTOINCREMENT, student_username TEXT, topic TEXT, score INTEGER, total INTEGER, quiz_date TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS feedback (id INTEGER PRIMARY KEY AUTOINCREMENT, teacher_username TEXT, message TEXT, date TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS questions (id INTEGER PRIMARY KEY AUTOINCREMENT, topic TEXT, question TEXT, opt0 TEXT, opt1 TEXT, opt2 TEXT, opt3 TEXT, correct_index INTEGER, explanation TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS experiments (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, description TEXT, filename TEXT, category TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS lectures (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, summary TEXT, video_url TEXT, category TEXT, teacher_username TEXT, upload_date TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS materials (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, description TEXT, file_path TEXT, file_type TEXT, file_size TEXT, category TEXT, teacher_username TEXT, upload_date TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS student_feedback (id INTEGER PRIMARY KEY AUTOINCREMENT, student_username TEXT, student_name TEXT, subject TEXT, message TEXT, feedback_date TEXT, is_read INTEGER DEFAULT 0)");
-            
-            // Test Module Tables
-            stmt.execute("CREATE TABLE IF NOT EXISTS test_questions (id INTEGER PRIMARY KEY AUTOINCREMENT, subject TEXT, question TEXT, opt0 TEXT, opt1 TEXT, opt2 TEXT, opt3 TEXT, correct_index INTEGER, created_by TEXT, created_date TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS scheduled_tests (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, subject TEXT, duration_minutes INTEGER, num_questions INTEGER, scheduled_date TEXT, scheduled_time TEXT, status TEXT DEFAULT 'scheduled', created_by TEXT)");
-            stmt.execute("CREATE TABLE IF NOT EXISTS test_results (id INTEGER PRIMARY KEY AUTOINCREMENT, test_id INTEGER, student_username TEXT, student_name TEXT, score INTEGER, total INTEGER, start_time TEXT, end_time TEXT, video_path TEXT, time_taken TEXT, status TEXT)");
-            
-            // Migration: Add time_taken column if it doesn't exist
-            try { stmt.execute("ALTER TABLE test_results ADD COLUMN time_taken TEXT"); } catch (SQLException e) { /* Column already exists */ }
+        try { pool = ConnectionPool.fromSystemProperties(dbUrl); }
+        catch (SQLException e) { e.printStackTrace(); return; }
+        writes = WriteQueue.fromSystemProperties(pool);
+        try { tableVersions = TableVersions.fromSystemProperties(pool); }
+        catch (SQLException e) { e.printStackTrace(); return; }
+        analytics = new ScoreAnalytics(pool, tableVersions);
+        itemAnalysis = new ItemAnalysis(pool, tableVersions);
+        answerKeys = new AnswerKeys(tableVersions, questionIndex, this::getQuestionPool);
+        regrader = new TestRegrader(pool, writes, answerKeys);
+        Runtime.getRuntime().addShutdownHook(new Thread(writes::close, "db-writer-drain"));
+        try (Connection conn = writer()) {
+            // 1. Schema
+            int version = SchemaMigrations.migrate(conn);
+            SchemaMigrations.postMigrate(conn);
+            if (Boolean.parseBoolean(System.getProperty("vlab.db.checkPlans", "true"))) SchemaMigrations.verifyQueryPlans(conn, HOT_QUERIES);
 
             // 2. Create Default Users
             if (getUser("student") == null) createUser(new User("student", "pass", "STUDENT", "Alex Student", ""));
@@ -39,14 +102,17 @@ public class DatabaseManager {
             // 3. Seed Data if empty
             if (getAllQuestions().isEmpty()) seedQuestions();
             if (getAllExperiments().isEmpty()) seedExperiments();
-            
-            System.out.println("SQLite Database setup complete.");
+            reloadQuizIndex();
+            reloadTestIndex();
+            if (Boolean.getBoolean("vlab.aggregates.rebuild")) rebuildScoreAggregates();
+
+            System.out.println("SQLite Database setup complete (schema version " + version + ").");
         } catch (SQLException e) { e.printStackTrace(); }
     }
 
     // --- User Management ---
     public User getUser(String username) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM users WHERE username = ?")) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_USER)) {
             stmt.setString(1, username);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) return new User(rs.getString("username"), rs.getString("password"), rs.getString("role"), rs.getString("full_name"), rs.getString("avatar"));
@@ -56,7 +122,7 @@ public class DatabaseManager {
 
     public List<User> getUsersByRole(String role) {
         List<User> list = new ArrayList<>();
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM users WHERE role = ?")) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM users WHERE role = ?")) {
             stmt.setString(1, role);
             ResultSet rs = stmt.executeQuery();
             while(rs.next()) list.add(new User(rs.getString("username"), "", rs.getString("role"), rs.getString("full_name"), ""));
@@ -65,7 +131,7 @@ public class DatabaseManager {
     }
 
     public boolean createUser(User user) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO users VALUES (?, ?, ?, ?, ?)")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO users VALUES (?, ?, ?, ?, ?)")) {
             stmt.setString(1, user.username());
             stmt.setString(2, user.password());
             stmt.setString(3, user.role());
@@ -76,10 +142,10 @@ public class DatabaseManager {
         } catch (SQLException e) { return false; }
     }
 
-    // Update Avatar
-    public boolean updateAvatar(String username, String base64) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("UPDATE users SET avatar = ? WHERE username = ?")) {
-            stmt.setString(1, base64);
+    // Update Avatar: users.avatar holds the AvatarStore hash, the image itself lives on disk
+    public boolean updateAvatar(String username, String hash) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("UPDATE users SET avatar = ? WHERE username = ?")) {
+            stmt.setString(1, hash);
             stmt.setString(2, username);
             return stmt.executeUpdate() > 0;
         } catch (SQLException e) { return false; }
@@ -88,7 +154,7 @@ public class DatabaseManager {
     // Teacher Update Student (Name/Pass)
     public boolean updateStudent(String username, String newPassword, String newFullName) {
         String sql = (newPassword != null && !newPassword.trim().isEmpty()) ? "UPDATE users SET full_name = ?, password = ? WHERE username = ?" : "UPDATE users SET full_name = ? WHERE username = ?";
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, newFullName);
             if (newPassword != null && !newPassword.trim().isEmpty()) { stmt.setString(2, newPassword); stmt.setString(3, username); } 
             else { stmt.setString(2, username); }
@@ -99,7 +165,7 @@ public class DatabaseManager {
     // Admin Update User (Name/Role/Pass)
     public boolean updateUser(String username, String newPassword, String newFullName, String newRole) {
         String sql = (newPassword != null && !newPassword.trim().isEmpty()) ? "UPDATE users SET full_name = ?, role = ?, password = ? WHERE username = ?" : "UPDATE users SET full_name = ?, role = ? WHERE username = ?";
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, newFullName);
             stmt.setString(2, newRole);
             if (newPassword != null && !newPassword.trim().isEmpty()) { stmt.setString(3, newPassword); stmt.setString(4, username); } 
@@ -109,7 +175,7 @@ public class DatabaseManager {
     }
 
     public boolean updatePassword(String username, String newPassword) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("UPDATE users SET password = ? WHERE username = ?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("UPDATE users SET password = ? WHERE username = ?")) {
             stmt.setString(1, newPassword);
             stmt.setString(2, username);
             return stmt.executeUpdate() > 0;
@@ -117,22 +183,63 @@ public class DatabaseManager {
     }
     
     public boolean deleteUser(String username) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM quiz_performance WHERE student_username = ?")) { stmt.setString(1, username); stmt.executeUpdate(); } catch (SQLException e) {}
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM users WHERE username = ?")) { stmt.setString(1, username); return stmt.executeUpdate() > 0; } catch (SQLException e) { return false; }
+        try (Connection conn = writer()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM answer_responses WHERE kind = 0 AND result_id IN (SELECT id FROM quiz_performance WHERE student_username = ?)")) { stmt.setString(1, username); stmt.executeUpdate(); }
+            try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM quiz_performance WHERE student_username = ?")) { stmt.setString(1, username); stmt.executeUpdate(); }
+            ScoreAggregates.removeStudent(conn, username);
+            conn.commit();
+        } catch (SQLException e) { e.printStackTrace(); }
+        analytics.invalidate();
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM users WHERE username = ?")) { stmt.setString(1, username); return stmt.executeUpdate() > 0; } catch (SQLException e) { return false; }
+    }
+
+    // --- Session Revocation ---
+    public void revokeSessionToken(String tokenId, long expiresAt) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE INTO revoked_sessions (token_id, expires_at) VALUES (?, ?)")) {
+            stmt.setString(1, tokenId); stmt.setLong(2, expiresAt); stmt.executeUpdate();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    public void revokeUserSessions(String username, long revokedAt) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE INTO revoked_users (username, revoked_at) VALUES (?, ?)")) {
+            stmt.setString(1, username); stmt.setLong(2, revokedAt); stmt.executeUpdate();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    /** Exact check behind the revocation Bloom filter: the token itself, or every token of the user issued up to the revocation. */
+    public boolean isSessionRevoked(String tokenId, String username, long issuedAt) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(
+            "SELECT 1 FROM revoked_sessions WHERE token_id=? UNION ALL SELECT 1 FROM revoked_users WHERE username=? AND revoked_at>=?")) {
+            stmt.setString(1, tokenId); stmt.setString(2, username); stmt.setLong(3, issuedAt);
+            return stmt.executeQuery().next();
+        } catch (SQLException e) { e.printStackTrace(); return true; }
+    }
+
+    /** Keys for the revocation filter ("t:id" / "u:username"), after pruning rows no live token can match. */
+    public List<String> getRevocationKeys(long now, long tokenLifetimeMillis) {
+        List<String> keys = new ArrayList<>();
+        try (Connection conn = writer(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM revoked_sessions WHERE expires_at < " + now);
+            stmt.executeUpdate("DELETE FROM revoked_users WHERE revoked_at < " + (now - tokenLifetimeMillis));
+            ResultSet rs = stmt.executeQuery("SELECT 't:' || token_id FROM revoked_sessions UNION ALL SELECT 'u:' || username FROM revoked_users");
+            while (rs.next()) keys.add(rs.getString(1));
+        } catch (SQLException e) { e.printStackTrace(); }
+        return keys;
     }
 
     // --- Experiment Management ---
     public void addExperiment(String title, String desc, String filename, String category) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO experiments (title, description, filename, category) VALUES (?, ?, ?, ?)")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO experiments (title, description, filename, category) VALUES (?, ?, ?, ?)")) {
             stmt.setString(1, title); stmt.setString(2, desc); stmt.setString(3, filename); stmt.setString(4, category); stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
     }
     public void deleteExperiment(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM experiments WHERE id = ?")) { stmt.setInt(1, id); stmt.executeUpdate(); } catch (SQLException e) { e.printStackTrace(); }
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM experiments WHERE id = ?")) { stmt.setInt(1, id); stmt.executeUpdate(); } catch (SQLException e) { e.printStackTrace(); }
     }
     public List<Experiment> getAllExperiments() {
         List<Experiment> list = new ArrayList<>();
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM experiments")) {
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM experiments")) {
             while (rs.next()) {
                 list.add(new Experiment(rs.getInt("id"), rs.getString("title"), rs.getString("description"), rs.getString("filename"), rs.getString("category")));
             }
@@ -150,53 +257,50 @@ public class DatabaseManager {
 
     // --- Question Management ---
     public void addQuestion(Question q) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO questions (topic, question, opt0, opt1, opt2, opt3, correct_index, explanation) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO questions (topic, question, opt0, opt1, opt2, opt3, correct_index, explanation) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
             stmt.setString(1, q.topic()); stmt.setString(2, q.question()); stmt.setString(3, q.options()[0]); stmt.setString(4, q.options()[1]); stmt.setString(5, q.options()[2]); stmt.setString(6, q.options()[3]); stmt.setInt(7, q.correctIndex()); stmt.setString(8, q.explanation()); stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
+        reloadQuizIndex();
     }
     public void updateQuestion(int id, Question q) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("UPDATE questions SET topic=?, question=?, opt0=?, opt1=?, opt2=?, opt3=?, correct_index=?, explanation=? WHERE id=?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("UPDATE questions SET topic=?, question=?, opt0=?, opt1=?, opt2=?, opt3=?, correct_index=?, explanation=? WHERE id=?")) {
             stmt.setString(1, q.topic()); stmt.setString(2, q.question()); stmt.setString(3, q.options()[0]); stmt.setString(4, q.options()[1]); stmt.setString(5, q.options()[2]); stmt.setString(6, q.options()[3]); stmt.setInt(7, q.correctIndex()); stmt.setString(8, q.explanation()); stmt.setInt(9, id); stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
+        reloadQuizIndex();
     }
     public void deleteQuestion(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM questions WHERE id = ?")) { stmt.setInt(1, id); stmt.executeUpdate(); } catch (SQLException e) { e.printStackTrace(); }
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM questions WHERE id = ?")) { stmt.setInt(1, id); stmt.executeUpdate(); } catch (SQLException e) { e.printStackTrace(); }
+        reloadQuizIndex();
     }
     public List<Question> getAllQuestions() {
         List<Question> list = new ArrayList<>();
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM questions")) {
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM questions")) {
             while (rs.next()) {
                 String[] opts = {rs.getString("opt0"), rs.getString("opt1"), rs.getString("opt2"), rs.getString("opt3")};
-                list.add(new Question(rs.getString("topic"), rs.getString("question"), opts, rs.getInt("correct_index"), rs.getString("explanation")));
+                list.add(new Question(rs.getInt("id"), rs.getString("topic"), rs.getString("question"), opts, rs.getInt("correct_index"), rs.getString("explanation")));
             }
         } catch (SQLException e) { e.printStackTrace(); }
         return list;
     }
-    public String getAllQuestionsAsJson() {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM questions ORDER BY id DESC")) {
-            boolean first = true;
+    public void writeAllQuestionsJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM questions ORDER BY id DESC")) {
             while (rs.next()) {
-                if (!first) json.append(","); first = false;
-                json.append(String.format("{\"id\":%d, \"topic\":\"%s\", \"question\":\"%s\", \"options\":[\"%s\",\"%s\",\"%s\",\"%s\"], \"correctIndex\":%d, \"explanation\":\"%s\"}",
-                    rs.getInt("id"), rs.getString("topic"), escape(rs.getString("question")),
-                    escape(rs.getString("opt0")), escape(rs.getString("opt1")), escape(rs.getString("opt2")), escape(rs.getString("opt3")),
-                    rs.getInt("correct_index"), escape(rs.getString("explanation"))));
+                json.beginObject().field("id", rs.getInt("id")).field("topic", rs.getString("topic")).field("question", rs.getString("question"));
+                json.name("options").beginArray().value(rs.getString("opt0")).value(rs.getString("opt1")).value(rs.getString("opt2")).value(rs.getString("opt3")).endArray();
+                json.field("correctIndex", rs.getInt("correct_index")).field("explanation", rs.getString("explanation")).endObject();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]"); return json.toString();
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
     }
     public List<Question> getRandomQuestions(String topic, int limit) {
-        List<Question> list = new ArrayList<>();
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM questions WHERE topic = ?")) {
-            stmt.setString(1, topic); ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                String[] opts = {rs.getString("opt0"), rs.getString("opt1"), rs.getString("opt2"), rs.getString("opt3")};
-                list.add(new Question(rs.getString("topic"), rs.getString("question"), opts, rs.getInt("correct_index"), rs.getString("explanation")));
-            }
-        } catch (SQLException e) { e.printStackTrace(); }
-        Collections.shuffle(list);
-        return list.subList(0, Math.min(limit, list.size()));
+        return questionIndex.sampleQuiz(topic, limit);
+    }
+    /** A quiz question from the in-memory bank, or null if it has been deleted. */
+    public Question getQuizQuestion(int id) { return questionIndex.quiz(id); }
+    // Synchronized, like reloadTestIndex: an older full-table read must never be swapped in after a newer one.
+    private synchronized void reloadQuizIndex() {
+        questionIndex.replaceQuiz(getAllQuestions());
     }
     private void seedQuestions() {
         addQuestion(new Question("physics", "Formula for Ohm's Law?", new String[]{"V=IR", "F=ma", "E=mc^2", "P=VI"}, 0, "V=IR is the standard formula."));
@@ -207,37 +311,139 @@ public class DatabaseManager {
     }
 
     // --- Performance & Feedback ---
-    public void saveQuizPerformance(QuizPerformance p) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO quiz_performance (student_username, topic, score, total, quiz_date) VALUES (?, ?, ?, ?, ?)")) {
-            stmt.setString(1, p.username()); stmt.setString(2, p.topic()); stmt.setInt(3, p.score()); stmt.setInt(4, p.total()); stmt.setString(5, p.timestamp().toString()); stmt.executeUpdate();
-        } catch (SQLException e) { e.printStackTrace(); }
+    public void saveQuizPerformance(QuizPerformance p) { saveQuizPerformance(p, null, null); }
+    /** Saves the result together with the option chosen for each question (questionIds[i] answered chosen[i]). */
+    public void saveQuizPerformance(QuizPerformance p, int[] questionIds, byte[] chosen) {
+        queued(WriteQueue.Durability.NORMAL, conn -> {
+            long id;
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO quiz_performance (student_username, topic, score, total, quiz_date) VALUES (?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setString(1, p.username()); stmt.setString(2, p.topic()); stmt.setInt(3, p.score()); stmt.setInt(4, p.total()); stmt.setString(5, p.timestamp().toString()); stmt.executeUpdate();
+                ResultSet rs = stmt.getGeneratedKeys();
+                id = rs.next() ? rs.getLong(1) : -1;
+            }
+            ScoreAggregates.record(conn, p.username(), p.topic(), p.score(), p.total());
+            recordResponses(conn, ItemAnalysis.Kind.QUIZ, id, questionIds, chosen);
+            return null;
+        }, null);
     }
-    public List<QuizPerformance> getPerformance(String username) {
+    // One batched insert per attempt; a missing choice is stored as ItemAnalysis.SKIPPED.
+    private static void recordResponses(Connection conn, ItemAnalysis.Kind kind, long resultId, int[] questionIds, byte[] chosen) throws SQLException {
+        if (questionIds == null || resultId <= 0) return;
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE INTO answer_responses (kind, question_id, result_id, chosen) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < questionIds.length; i++) {
+                if (questionIds[i] <= 0) continue;
+                stmt.setInt(1, kind.ordinal()); stmt.setInt(2, questionIds[i]); stmt.setLong(3, resultId);
+                stmt.setInt(4, chosen != null && i < chosen.length ? chosen[i] : ItemAnalysis.SKIPPED);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+    public List<QuizPerformance> getPerformance(String username, int limit) {
         List<QuizPerformance> list = new ArrayList<>();
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM quiz_performance WHERE student_username = ? ORDER BY id DESC")) {
-            stmt.setString(1, username); ResultSet rs = stmt.executeQuery();
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_PERFORMANCE_BY_STUDENT)) {
+            stmt.setString(1, username); stmt.setInt(2, limit); ResultSet rs = stmt.executeQuery();
             while (rs.next()) list.add(new QuizPerformance(rs.getString("student_username"), rs.getString("topic"), rs.getInt("score"), rs.getInt("total"), java.time.LocalDateTime.parse(rs.getString("quiz_date"))));
         } catch (SQLException e) { e.printStackTrace(); }
         return list;
     }
-    public List<QuizPerformance> getAllPerformance() {
-        List<QuizPerformance> list = new ArrayList<>();
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM quiz_performance ORDER BY id DESC")) {
-            while (rs.next()) list.add(new QuizPerformance(rs.getString("student_username"), rs.getString("topic"), rs.getInt("score"), rs.getInt("total"), java.time.LocalDateTime.parse(rs.getString("quiz_date"))));
+    // Per-topic statistics from the aggregate tables, one row per topic rather than the whole history.
+    public List<ScoreAggregates.Aggregate> getScoreAggregates(String username) {
+        try (Connection conn = reader()) { return ScoreAggregates.forStudent(conn, username); }
+        catch (SQLException e) { e.printStackTrace(); return new ArrayList<>(); }
+    }
+    public Map<String, ScoreAggregates.Aggregate> getTopicAggregates() {
+        try (Connection conn = reader()) { return ScoreAggregates.allTopics(conn); }
+        catch (SQLException e) { e.printStackTrace(); return Map.of(); }
+    }
+    /**
+     * The teacher dashboard's stat cards from the aggregate tables, for the whole class or one
+     * student: {"attempts","average","topSubject","topics":{topic: average}}, averages in percent.
+     */
+    public void writePerformanceSummaryJson(JsonStreamWriter json, String student) throws IOException {
+        java.util.Collection<ScoreAggregates.Aggregate> rows;
+        try (Connection conn = reader()) { rows = student == null ? ScoreAggregates.allTopics(conn).values() : ScoreAggregates.forStudent(conn, student); }
+        catch (SQLException e) { throw new IOException(e); }
+        int attempts = 0;
+        double pctSum = 0, topAverage = -1;
+        String top = "-";
+        for (ScoreAggregates.Aggregate a : rows) {
+            attempts += a.attempts();
+            pctSum += a.pctSum();
+            if (a.attempts() > 0 && a.average() > topAverage) { topAverage = a.average(); top = a.topic(); }
+        }
+        json.beginObject().field("attempts", attempts).field("average", round1(attempts == 0 ? 0 : pctSum / attempts)).field("topSubject", top).name("topics").beginObject();
+        for (ScoreAggregates.Aggregate a : rows) if (a.attempts() > 0) json.field(a.topic(), round1(a.average()));
+        json.endObject().endObject();
+    }
+    public void rebuildScoreAggregates() {
+        try (Connection conn = writer()) {
+            conn.setAutoCommit(false);
+            int rows = ScoreAggregates.rebuild(conn);
+            conn.commit();
+            System.out.println("Score aggregates rebuilt from " + rows + " quiz results.");
         } catch (SQLException e) { e.printStackTrace(); }
-        return list;
     }
+    /** Every quiz attempt, newest first; items match writePerformancePageJson without the id. */
+    public void writeAllPerformanceJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT student_username, topic, score, total, quiz_date FROM quiz_performance ORDER BY id DESC")) {
+            while (rs.next()) {
+                String date = rs.getString("quiz_date");
+                json.beginObject().field("student", rs.getString("student_username")).field("topic", rs.getString("topic"))
+                    .field("score", rs.getInt("score")).field("total", rs.getInt("total")).field("date", date != null ? date.split("T")[0] : null).endObject();
+            }
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
+    }
+    // Keyset page of quiz attempts, newest id first; args receives the values for the placeholders.
+    private static String performancePageSql(PageQuery q, List<Object> args) {
+        StringBuilder sql = new StringBuilder("SELECT id, student_username, topic, score, total, quiz_date FROM quiz_performance WHERE 1=1");
+        if (q.student() != null) { sql.append(" AND student_username = ?"); args.add(q.student()); }
+        if (q.topic() != null) { sql.append(" AND topic = ?"); args.add(q.topic()); }
+        if (q.from() != null) { sql.append(" AND quiz_date >= ?"); args.add(q.from()); }
+        if (q.to() != null) { sql.append(" AND quiz_date < ?"); args.add(q.to()); }
+        if (q.afterId() >= 0) { sql.append(" AND id < ?"); args.add(q.afterId()); }
+        sql.append(" ORDER BY id DESC LIMIT ?"); args.add(q.limit() + 1);
+        return sql.toString();
+    }
+
+    /** One page of quiz attempts as {"items":[...],"nextCursor":...}; nextCursor is null on the last page. */
+    public void writePerformancePageJson(JsonStreamWriter json, PageQuery q) throws IOException {
+        List<Object> args = new ArrayList<>();
+        String sql = performancePageSql(q, args);
+        String next = null;
+        json.beginObject().name("items").beginArray();
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < args.size(); i++) stmt.setObject(i + 1, args.get(i));
+            ResultSet rs = stmt.executeQuery();
+            int n = 0;
+            long lastId = 0;
+            while (rs.next()) {
+                // one row beyond the page only tells us there is another page
+                if (n++ == q.limit()) { next = PageQuery.cursor(null, lastId); break; }
+                lastId = rs.getLong("id");
+                String date = rs.getString("quiz_date");
+                json.beginObject().field("id", lastId).field("student", rs.getString("student_username")).field("topic", rs.getString("topic"))
+                    .field("score", rs.getInt("score")).field("total", rs.getInt("total")).field("date", date != null ? date.split("T")[0] : null).endObject();
+            }
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray().name("nextCursor");
+        if (next != null) json.value(next); else json.nullValue();
+        json.endObject();
+    }
+
     public void addFeedback(String teacher, String msg) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO feedback (teacher_username, message, date) VALUES (?, ?, ?)")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO feedback (teacher_username, message, date) VALUES (?, ?, ?)")) {
             stmt.setString(1, teacher); stmt.setString(2, msg); stmt.setString(3, java.time.LocalDate.now().toString()); stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
     }
     public void clearFeedback() {
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) { stmt.execute("DELETE FROM feedback"); } catch (SQLException e) { e.printStackTrace(); }
+        try (Connection conn = writer(); Statement stmt = conn.createStatement()) { stmt.execute("DELETE FROM feedback"); } catch (SQLException e) { e.printStackTrace(); }
     }
     public List<String> getAllFeedback() {
         List<String> list = new ArrayList<>();
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM feedback ORDER BY id DESC")) {
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM feedback ORDER BY id DESC")) {
             while(rs.next()) list.add(rs.getString("date") + " - " + rs.getString("teacher_username") + ": " + rs.getString("message"));
         } catch (SQLException e) { e.printStackTrace(); }
         return list;
@@ -245,7 +451,7 @@ public class DatabaseManager {
 
     // --- Lecture Management ---
     public void addLecture(String title, String summary, String videoUrl, String category, String teacherUsername) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO lectures (title, summary, video_url, category, teacher_username, upload_date) VALUES (?, ?, ?, ?, ?, ?)")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO lectures (title, summary, video_url, category, teacher_username, upload_date) VALUES (?, ?, ?, ?, ?, ?)")) {
             stmt.setString(1, title);
             stmt.setString(2, summary);
             stmt.setString(3, videoUrl);
@@ -257,32 +463,27 @@ public class DatabaseManager {
     }
 
     public void deleteLecture(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM lectures WHERE id = ?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM lectures WHERE id = ?")) {
             stmt.setInt(1, id);
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
     }
 
-    public String getAllLecturesAsJson() {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM lectures ORDER BY id DESC")) {
-            boolean first = true;
+    public void writeAllLecturesJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM lectures ORDER BY id DESC")) {
             while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
-                json.append(String.format("{\"id\":%d, \"title\":\"%s\", \"summary\":\"%s\", \"videoUrl\":\"%s\", \"category\":\"%s\", \"teacher\":\"%s\", \"date\":\"%s\"}",
-                    rs.getInt("id"), escape(rs.getString("title")), escape(rs.getString("summary")),
-                    escape(rs.getString("video_url")), escape(rs.getString("category")),
-                    escape(rs.getString("teacher_username")), rs.getString("upload_date")));
+                json.beginObject().field("id", rs.getInt("id")).field("title", rs.getString("title")).field("summary", rs.getString("summary"))
+                    .field("videoUrl", rs.getString("video_url")).field("category", rs.getString("category"))
+                    .field("teacher", rs.getString("teacher_username")).field("date", rs.getString("upload_date")).endObject();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
     }
 
     // --- Study Materials Management ---
     public void addMaterial(String title, String description, String filePath, String fileType, String fileSize, String category, String teacherUsername) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO materials (title, description, file_path, file_type, file_size, category, teacher_username, upload_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO materials (title, description, file_path, file_type, file_size, category, teacher_username, upload_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
             stmt.setString(1, title);
             stmt.setString(2, description);
             stmt.setString(3, filePath);
@@ -296,14 +497,14 @@ public class DatabaseManager {
     }
 
     public void deleteMaterial(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM materials WHERE id = ?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM materials WHERE id = ?")) {
             stmt.setInt(1, id);
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
     }
 
     public String getMaterialFilePath(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT file_path FROM materials WHERE id = ?")) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement("SELECT file_path FROM materials WHERE id = ?")) {
             stmt.setInt(1, id);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) return rs.getString("file_path");
@@ -311,79 +512,73 @@ public class DatabaseManager {
         return null;
     }
 
-    public String getAllMaterialsAsJson() {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM materials ORDER BY id DESC")) {
-            boolean first = true;
+    public void writeAllMaterialsJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM materials ORDER BY id DESC")) {
             while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
-                json.append(String.format("{\"id\":%d, \"title\":\"%s\", \"description\":\"%s\", \"filePath\":\"%s\", \"fileType\":\"%s\", \"fileSize\":\"%s\", \"category\":\"%s\", \"teacher\":\"%s\", \"date\":\"%s\"}",
-                    rs.getInt("id"), escape(rs.getString("title")), escape(rs.getString("description")),
-                    escape(rs.getString("file_path")), escape(rs.getString("file_type")), escape(rs.getString("file_size")),
-                    escape(rs.getString("category")), escape(rs.getString("teacher_username")), rs.getString("upload_date")));
+                json.beginObject().field("id", rs.getInt("id")).field("title", rs.getString("title")).field("description", rs.getString("description"))
+                    .field("filePath", rs.getString("file_path")).field("fileType", rs.getString("file_type")).field("fileSize", rs.getString("file_size"))
+                    .field("category", rs.getString("category")).field("teacher", rs.getString("teacher_username")).field("date", rs.getString("upload_date")).endObject();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
     }
 
     // --- Student Feedback Management ---
     public void addStudentFeedback(String studentUsername, String studentName, String subject, String message) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("INSERT INTO student_feedback (student_username, student_name, subject, message, feedback_date, is_read) VALUES (?, ?, ?, ?, ?, 0)")) {
-            stmt.setString(1, studentUsername);
-            stmt.setString(2, studentName);
-            stmt.setString(3, subject);
-            stmt.setString(4, message);
-            stmt.setString(5, java.time.LocalDateTime.now().toString());
-            stmt.executeUpdate();
-        } catch (SQLException e) { e.printStackTrace(); }
+        String date = java.time.LocalDateTime.now().toString();
+        queued(WriteQueue.Durability.DEFERRED, conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO student_feedback (student_username, student_name, subject, message, feedback_date, is_read) VALUES (?, ?, ?, ?, ?, 0)")) {
+                stmt.setString(1, studentUsername);
+                stmt.setString(2, studentName);
+                stmt.setString(3, subject);
+                stmt.setString(4, message);
+                stmt.setString(5, date);
+                stmt.executeUpdate();
+            }
+            return null;
+        }, null);
     }
 
     public void markFeedbackAsRead(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("UPDATE student_feedback SET is_read = 1 WHERE id = ?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("UPDATE student_feedback SET is_read = 1 WHERE id = ?")) {
             stmt.setInt(1, id);
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
     }
 
     public void deleteStudentFeedback(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM student_feedback WHERE id = ?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM student_feedback WHERE id = ?")) {
             stmt.setInt(1, id);
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
     }
 
     public int getUnreadFeedbackCount() {
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT COUNT(*) as count FROM student_feedback WHERE is_read = 0")) {
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT COUNT(*) as count FROM student_feedback WHERE is_read = 0")) {
             if (rs.next()) return rs.getInt("count");
         } catch (SQLException e) { e.printStackTrace(); }
         return 0;
     }
 
-    public String getAllStudentFeedbackAsJson() {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM student_feedback ORDER BY id DESC")) {
-            boolean first = true;
+    public void writeAllStudentFeedbackJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM student_feedback ORDER BY id DESC")) {
             while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
                 String date = rs.getString("feedback_date");
                 if (date.contains("T")) date = date.split("T")[0];
-                json.append(String.format("{\"id\":%d, \"student\":\"%s\", \"studentName\":\"%s\", \"subject\":\"%s\", \"message\":\"%s\", \"date\":\"%s\", \"isRead\":%d}",
-                    rs.getInt("id"), escape(rs.getString("student_username")), escape(rs.getString("student_name")),
-                    escape(rs.getString("subject")), escape(rs.getString("message")), date, rs.getInt("is_read")));
+                json.beginObject().field("id", rs.getInt("id")).field("student", rs.getString("student_username")).field("studentName", rs.getString("student_name"))
+                    .field("subject", rs.getString("subject")).field("message", rs.getString("message")).field("date", date).field("isRead", rs.getInt("is_read")).endObject();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
     }
 
     // === TEST MODULE METHODS ===
     
     // Test Questions Management
     public void addTestQuestion(String subject, String question, String opt0, String opt1, String opt2, String opt3, int correctIndex, String createdBy) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement(
             "INSERT INTO test_questions (subject, question, opt0, opt1, opt2, opt3, correct_index, created_by, created_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
             stmt.setString(1, subject);
             stmt.setString(2, question);
@@ -396,10 +591,13 @@ public class DatabaseManager {
             stmt.setString(9, java.time.LocalDate.now().toString());
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
+        reloadTestIndex();
     }
 
+    /** A change of correct option re-grades every test whose pool holds the question, in the background. */
     public void updateTestQuestion(int id, String subject, String question, String opt0, String opt1, String opt2, String opt3, int correctIndex) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
+        QuestionIndex.TestItem before = questionIndex.test(id);
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement(
             "UPDATE test_questions SET subject=?, question=?, opt0=?, opt1=?, opt2=?, opt3=?, correct_index=? WHERE id=?")) {
             stmt.setString(1, subject);
             stmt.setString(2, question);
@@ -411,67 +609,156 @@ public class DatabaseManager {
             stmt.setInt(8, id);
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
+        reloadTestIndex();
+        if (before != null && before.correctIndex() != correctIndex) regradeTestsUsing(id);
     }
 
+    /**
+     * A deleted question stops counting for new attempts only; past results keep the score they
+     * were given until a teacher asks for a regrade of the test.
+     */
     public void deleteTestQuestion(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM test_questions WHERE id=?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM test_questions WHERE id=?")) {
             stmt.setInt(1, id);
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
+        reloadTestIndex();
     }
 
-    public String getAllTestQuestionsAsJson() {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); 
+    /** Scores a submission against the test's current answer key. */
+    public AnswerKeys.Grade gradeTest(int testId, int[] questionIds, byte[] chosen) {
+        return answerKeys.key(testId).grade(questionIds, chosen);
+    }
+
+    /** Re-scores the test's completed attempts from their stored responses; null if that failed. */
+    public TestRegrader.Report regradeTest(int testId) {
+        TestRegrader.Report report;
+        try { report = regrader.regrade(testId); }
+        catch (SQLException e) { e.printStackTrace(); return null; }
+        if (report.changed() > 0) analytics.invalidate(); // scores changed in place, which the append-only refresh cannot see
+        System.out.println("Re-graded test " + testId + ": " + report.submissions() + " submissions (" + report.changed() + " changed) in " + report.millis() + " ms, " + report.perSecond() + "/s");
+        return report;
+    }
+
+    private void regradeTestsUsing(int questionId) {
+        List<Integer> tests = new ArrayList<>();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT id FROM scheduled_tests")) {
+            while (rs.next()) tests.add(rs.getInt(1));
+        } catch (SQLException e) { e.printStackTrace(); return; }
+        for (int testId : tests) {
+            for (int id : getQuestionPool(testId)) {
+                if (id != questionId) continue;
+                regrades.execute(() -> regradeTest(testId));
+                break;
+            }
+        }
+    }
+
+    public void writeAllTestQuestionsJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); 
              ResultSet rs = stmt.executeQuery("SELECT * FROM test_questions ORDER BY id DESC")) {
-            boolean first = true;
             while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
-                json.append(String.format("{\"id\":%d,\"subject\":\"%s\",\"question\":\"%s\",\"opt0\":\"%s\",\"opt1\":\"%s\",\"opt2\":\"%s\",\"opt3\":\"%s\",\"correctIndex\":%d,\"createdBy\":\"%s\",\"createdDate\":\"%s\"}",
-                    rs.getInt("id"), escape(rs.getString("subject")), escape(rs.getString("question")),
-                    escape(rs.getString("opt0")), escape(rs.getString("opt1")), escape(rs.getString("opt2")), escape(rs.getString("opt3")),
-                    rs.getInt("correct_index"), escape(rs.getString("created_by")), rs.getString("created_date")));
+                json.beginObject().field("id", rs.getInt("id")).field("subject", rs.getString("subject")).field("question", rs.getString("question"))
+                    .field("opt0", rs.getString("opt0")).field("opt1", rs.getString("opt1")).field("opt2", rs.getString("opt2")).field("opt3", rs.getString("opt3"))
+                    .field("correctIndex", rs.getInt("correct_index")).field("createdBy", rs.getString("created_by")).field("createdDate", rs.getString("created_date")).endObject();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
     }
 
-    public String getRandomTestQuestions(int count) {
-        StringBuilder json = new StringBuilder("[");
-        String query = "SELECT * FROM test_questions ORDER BY RANDOM() LIMIT ?";
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(query)) {
-            stmt.setInt(1, count);
+    /** An exam question from the in-memory bank, or null if it has been deleted. */
+    public QuestionIndex.TestItem getTestItem(int id) { return questionIndex.test(id); }
+    /** Changes after every question bank edit, once the in-memory index has caught up. */
+    public long questionBankGeneration() { return questionIndex.generation(); }
+
+    /**
+     * Exactly what the student was served for the test, each question with the option they chose
+     * (null if unanswered or not recorded) from their latest completed attempt.
+     */
+    public String getExamReplayJson(int testId, String username) {
+        Map<Integer, Integer> chosen = new java.util.HashMap<>();
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(
+            "SELECT question_id, chosen FROM answer_responses WHERE kind = 1 AND result_id = " +
+            "(SELECT id FROM test_results WHERE test_id=? AND student_username=? AND status='completed' ORDER BY id DESC LIMIT 1)")) {
+            stmt.setInt(1, testId);
+            stmt.setString(2, username);
             ResultSet rs = stmt.executeQuery();
-            boolean first = true;
-            while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
-                json.append(String.format("{\"id\":%d,\"subject\":\"%s\",\"question\":\"%s\",\"options\":[\"%s\",\"%s\",\"%s\",\"%s\"],\"correctIndex\":%d}",
-                    rs.getInt("id"), escape(rs.getString("subject")), escape(rs.getString("question")),
-                    escape(rs.getString("opt0")), escape(rs.getString("opt1")), escape(rs.getString("opt2")), escape(rs.getString("opt3")),
-                    rs.getInt("correct_index")));
-            }
+            while (rs.next()) chosen.put(rs.getInt(1), rs.getInt(2));
         } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        return paperJson(testId, username, chosen);
     }
 
-    public int getScheduledTestQuestionCount(int testId) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
-            "SELECT num_questions FROM scheduled_tests WHERE id=?")) {
+    // Questions deleted from the bank since the pool was frozen are left out.
+    private String paperJson(int testId, String username, Map<Integer, Integer> chosen) {
+        StringBuilder json = new StringBuilder("[");
+        for (int id : QuestionPools.paperFor(getQuestionPool(testId), testId, username)) {
+            QuestionIndex.TestItem item = questionIndex.test(id);
+            if (item == null) continue;
+            if (json.length() > 1) json.append(",");
+            Integer c = chosen.get(id);
+            json.append(item.json(), 0, item.json().length() - 1).append(",\"correctIndex\":").append(item.correctIndex())
+                .append(",\"chosen\":").append(c == null || c < 0 ? "null" : c.toString()).append("}");
+        }
+        return json.append("]").toString();
+    }
+
+    /** The test's frozen question ids, freezing them now if the test predates pools or was scheduled on an empty bank. */
+    public int[] getQuestionPool(int testId) {
+        long stamp = tableVersions.version("scheduled_tests");
+        FrozenPool cached = pools.get(testId);
+        if (cached != null && cached.stamp() == stamp) return cached.ids();
+        int[] ids = loadPool(testId);
+        if (ids.length > 0) pools.put(testId, new FrozenPool(stamp, ids));
+        return ids;
+    }
+
+    private int[] loadPool(int testId) {
+        String subject; int count; byte[] blob;
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement("SELECT subject, num_questions, question_pool FROM scheduled_tests WHERE id=?")) {
             stmt.setInt(1, testId);
             ResultSet rs = stmt.executeQuery();
-            if (rs.next()) return rs.getInt("num_questions");
+            if (!rs.next()) return new int[0];
+            subject = rs.getString(1); count = rs.getInt(2); blob = rs.getBytes(3);
+        } catch (SQLException e) { e.printStackTrace(); return new int[0]; }
+        if (blob != null && blob.length > 0) return QuestionPools.unpack(blob);
+        int[] ids = drawPool(subject, count);
+        if (ids.length == 0) return ids;
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("UPDATE scheduled_tests SET question_pool=? WHERE id=? AND (question_pool IS NULL OR length(question_pool) = 0)")) {
+            stmt.setBytes(1, QuestionPools.pack(ids));
+            stmt.setInt(2, testId);
+            if (stmt.executeUpdate() == 0) return loadPool(testId); // frozen by a concurrent request, use theirs
         } catch (SQLException e) { e.printStackTrace(); }
-        return 10;
+        return ids;
+    }
+
+    private int[] drawPool(String subject, int count) {
+        List<QuestionIndex.TestItem> items = questionIndex.sampleTests(subject, count > 0 ? count : 10);
+        int[] ids = new int[items.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = items.get(i).id();
+        return ids;
+    }
+
+    // Rebuilds the exam half of the index, rendering each question's JSON once here instead of per request.
+    // Reloads run one at a time so a slower, older read cannot replace a newer snapshot.
+    private synchronized void reloadTestIndex() {
+        List<QuestionIndex.TestItem> items = new ArrayList<>();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM test_questions")) {
+            while (rs.next()) {
+                // no correctIndex: papers are graded on the server, so students never receive the key
+                String json = String.format("{\"id\":%d,\"subject\":\"%s\",\"question\":\"%s\",\"options\":[\"%s\",\"%s\",\"%s\",\"%s\"]}",
+                    rs.getInt("id"), escape(rs.getString("subject")), escape(rs.getString("question")),
+                    escape(rs.getString("opt0")), escape(rs.getString("opt1")), escape(rs.getString("opt2")), escape(rs.getString("opt3")));
+                items.add(new QuestionIndex.TestItem(rs.getInt("id"), rs.getString("subject"), rs.getInt("correct_index"), json));
+            }
+        } catch (SQLException e) { e.printStackTrace(); return; }
+        questionIndex.replaceTests(items);
     }
 
     // Scheduled Tests Management
     public int scheduleTest(String title, String subject, int duration, int numQuestions, String date, String time, String createdBy) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
-            "INSERT INTO scheduled_tests (title, subject, duration_minutes, num_questions, scheduled_date, scheduled_time, status, created_by) VALUES (?, ?, ?, ?, ?, ?, 'scheduled', ?)", Statement.RETURN_GENERATED_KEYS)) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement(
+            "INSERT INTO scheduled_tests (title, subject, duration_minutes, num_questions, scheduled_date, scheduled_time, status, created_by, question_pool) VALUES (?, ?, ?, ?, ?, ?, 'scheduled', ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
             stmt.setString(1, title);
             stmt.setString(2, subject);
             stmt.setInt(3, duration);
@@ -479,6 +766,7 @@ public class DatabaseManager {
             stmt.setString(5, date);
             stmt.setString(6, time);
             stmt.setString(7, createdBy);
+            stmt.setBytes(8, QuestionPools.pack(drawPool(subject, numQuestions)));
             stmt.executeUpdate();
             ResultSet rs = stmt.getGeneratedKeys();
             if (rs.next()) return rs.getInt(1);
@@ -486,9 +774,14 @@ public class DatabaseManager {
         return -1;
     }
 
+    /**
+     * A change of subject or question count draws a new pool, but only while nobody has started
+     * the test; after that the frozen pool stays so every paper can still be replayed.
+     */
     public void updateScheduledTest(int id, String title, String subject, int duration, int numQuestions, String date, String time, String status) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
-            "UPDATE scheduled_tests SET title=?, subject=?, duration_minutes=?, num_questions=?, scheduled_date=?, scheduled_time=?, status=? WHERE id=?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement(
+            "UPDATE scheduled_tests SET title=?1, subject=?2, duration_minutes=?3, num_questions=?4, scheduled_date=?5, scheduled_time=?6, status=?7, " +
+            "question_pool = CASE WHEN (subject IS NOT ?2 OR num_questions != ?4) AND NOT EXISTS (SELECT 1 FROM test_results WHERE test_id = ?8) THEN ?9 ELSE question_pool END WHERE id=?8")) {
             stmt.setString(1, title);
             stmt.setString(2, subject);
             stmt.setInt(3, duration);
@@ -497,86 +790,170 @@ public class DatabaseManager {
             stmt.setString(6, time);
             stmt.setString(7, status);
             stmt.setInt(8, id);
+            stmt.setBytes(9, QuestionPools.pack(drawPool(subject, numQuestions)));
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
     }
 
+    public boolean scheduledTestExists(int id) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM scheduled_tests WHERE id=?")) {
+            stmt.setInt(1, id);
+            return stmt.executeQuery().next();
+        } catch (SQLException e) { e.printStackTrace(); }
+        return false;
+    }
+
     public void deleteScheduledTest(int id) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM scheduled_tests WHERE id=?")) {
+        try (Connection conn = writer(); PreparedStatement stmt = conn.prepareStatement("DELETE FROM scheduled_tests WHERE id=?")) {
             stmt.setInt(1, id);
             stmt.executeUpdate();
         } catch (SQLException e) { e.printStackTrace(); }
     }
 
-    public String getAllScheduledTestsAsJson() {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); 
+    public void writeAllScheduledTestsJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); 
              ResultSet rs = stmt.executeQuery("SELECT * FROM scheduled_tests ORDER BY scheduled_date DESC, scheduled_time DESC")) {
-            boolean first = true;
             while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
-                json.append(String.format("{\"id\":%d,\"title\":\"%s\",\"subject\":\"%s\",\"duration\":%d,\"numQuestions\":%d,\"scheduledDate\":\"%s\",\"scheduledTime\":\"%s\",\"status\":\"%s\",\"createdBy\":\"%s\"}",
-                    rs.getInt("id"), escape(rs.getString("title")), escape(rs.getString("subject")),
-                    rs.getInt("duration_minutes"), rs.getInt("num_questions"),
-                    rs.getString("scheduled_date"), rs.getString("scheduled_time"),
-                    rs.getString("status"), escape(rs.getString("created_by"))));
+                json.beginObject().field("id", rs.getInt("id")).field("title", rs.getString("title")).field("subject", rs.getString("subject"))
+                    .field("duration", rs.getInt("duration_minutes")).field("numQuestions", rs.getInt("num_questions"))
+                    .field("scheduledDate", rs.getString("scheduled_date")).field("scheduledTime", rs.getString("scheduled_time"))
+                    .field("status", rs.getString("status")).field("createdBy", rs.getString("created_by")).endObject();
             }
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
+    }
+
+    /** Tests that are scheduled or active, in start order. */
+    public List<ScheduledTest> getScheduledTests() {
+        List<ScheduledTest> list = new ArrayList<>();
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_ACTIVE_TESTS); ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) list.add(new ScheduledTest(rs.getInt("id"), rs.getString("title"), rs.getString("subject"), rs.getInt("duration_minutes"),
+                                                         rs.getInt("num_questions"), rs.getString("scheduled_date"), rs.getString("scheduled_time"), rs.getString("status")));
         } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        return list;
     }
 
-    public String getActiveTestsForStudent() {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
-            "SELECT * FROM scheduled_tests WHERE status IN ('scheduled', 'active') ORDER BY scheduled_date, scheduled_time")) {
-            ResultSet rs = stmt.executeQuery();
-            boolean first = true;
+    public void writeActiveTestsJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_ACTIVE_TESTS); ResultSet rs = stmt.executeQuery()) {
             while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
-                json.append(String.format("{\"id\":%d,\"title\":\"%s\",\"subject\":\"%s\",\"duration\":%d,\"numQuestions\":%d,\"scheduledDate\":\"%s\",\"scheduledTime\":\"%s\"}",
-                    rs.getInt("id"), escape(rs.getString("title")), escape(rs.getString("subject")),
-                    rs.getInt("duration_minutes"), rs.getInt("num_questions"),
-                    rs.getString("scheduled_date"), rs.getString("scheduled_time")));
+                json.beginObject().field("id", rs.getInt("id")).field("title", rs.getString("title")).field("subject", rs.getString("subject"))
+                    .field("duration", rs.getInt("duration_minutes")).field("numQuestions", rs.getInt("num_questions"))
+                    .field("scheduledDate", rs.getString("scheduled_date")).field("scheduledTime", rs.getString("scheduled_time")).endObject();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
     }
 
     // Test Results Management
-    public int startTestResult(int testId, String studentUsername, String studentName) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
-            "INSERT INTO test_results (test_id, student_username, student_name, score, total, start_time, status) VALUES (?, ?, ?, 0, 0, ?, 'in_progress')", Statement.RETURN_GENERATED_KEYS)) {
+    /**
+     * Starts or resumes the student's attempt in one statement: a new row is inserted, an attempt
+     * still in progress comes back with its original start time, and a completed one (or a test
+     * that does not exist) returns nothing. The unique (test_id, student_username) index makes
+     * this safe against double clicks without a prior read.
+     */
+    public TestAttempt startTestAttempt(int testId, String studentUsername, String studentName) {
+        String startTime = java.time.LocalDateTime.now().toString();
+        return queued(WriteQueue.Durability.FULL, conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(SQL_START_ATTEMPT)) {
+                stmt.setInt(1, testId);
+                stmt.setString(2, studentUsername);
+                stmt.setString(3, studentName);
+                stmt.setString(4, startTime);
+                ResultSet rs = stmt.executeQuery();
+                return rs.next() ? new TestAttempt(rs.getInt(1), rs.getString(2), rs.getInt(3), !startTime.equals(rs.getString(2))) : null;
+            }
+        }, null);
+    }
+
+    public boolean completeTestResult(int resultId, int score, int total, String videoPath, String timeTaken) { return completeTestResult(resultId, score, total, videoPath, timeTaken, null, null); }
+    /** Closes an attempt that is still in progress; false if it was already closed (or expired). */
+    public boolean completeTestResult(int resultId, int score, int total, String videoPath, String timeTaken, int[] questionIds, byte[] chosen) {
+        String endTime = java.time.LocalDateTime.now().toString();
+        return queued(WriteQueue.Durability.FULL, conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                "UPDATE test_results SET score=?, total=?, end_time=?, video_path=?, time_taken=?, status='completed' WHERE id=? AND status='in_progress'")) {
+                stmt.setInt(1, score);
+                stmt.setInt(2, total);
+                stmt.setString(3, endTime);
+                stmt.setString(4, videoPath);
+                stmt.setString(5, timeTaken);
+                stmt.setInt(6, resultId);
+                if (stmt.executeUpdate() == 0) return false;
+            }
+            recordResponses(conn, ItemAnalysis.Kind.TEST, resultId, questionIds, chosen);
+            return true;
+        }, false);
+    }
+
+    /**
+     * Closes an attempt whose time ran out without a submit: no answers reached the server, so it
+     * scores 0 out of the same total a graded submit gets, with the recording stitched from the
+     * chunks that did (videoPath, null if none). The row is only changed while it is in
+     * progress and past its deadline, so whichever process or submit gets there first wins.
+     * Queued without waiting; called from the exam timer thread.
+     */
+    public void expireTestResult(int resultId, int testId, String timeTaken, long graceMillis, String videoPath) {
+        String endTime = java.time.LocalDateTime.now().toString();
+        int total = answerKeys.key(testId).total();
+        queued(WriteQueue.Durability.DEFERRED, conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                "UPDATE test_results SET score=0, total=?, end_time=?, time_taken=?, video_path=?, status='completed' WHERE id=? AND status='in_progress' " +
+                "AND julianday(start_time) + (COALESCE((SELECT duration_minutes FROM scheduled_tests WHERE scheduled_tests.id = test_results.test_id), 0) * 60000 + ?) / 86400000.0 < julianday(?)")) {
+                stmt.setInt(1, total);
+                stmt.setString(2, endTime);
+                stmt.setString(3, timeTaken);
+                stmt.setString(4, videoPath);
+                stmt.setInt(5, resultId);
+                stmt.setLong(6, graceMillis);
+                stmt.setString(7, endTime);
+                stmt.executeUpdate();
+            }
+            return null;
+        }, null);
+    }
+
+    public List<InProgressTest> getInProgressTests() {
+        List<InProgressTest> list = new ArrayList<>();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(SQL_IN_PROGRESS)) {
+            while (rs.next()) list.add(new InProgressTest(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getInt(5)));
+        } catch (SQLException e) { e.printStackTrace(); }
+        return list;
+    }
+
+    /** The attempt if its row is still in progress (deadline not checked), else null. */
+    public InProgressTest getInProgressTest(int resultId) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_IN_PROGRESS_BY_ID)) {
+            stmt.setInt(1, resultId);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) return new InProgressTest(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getInt(5));
+        } catch (SQLException e) { e.printStackTrace(); }
+        return null;
+    }
+
+    /** The student's attempt at the test if it is still in progress (deadline not checked), else null. */
+    public InProgressTest getInProgressTest(int testId, String username) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_IN_PROGRESS_BY_STUDENT)) {
             stmt.setInt(1, testId);
-            stmt.setString(2, studentUsername);
-            stmt.setString(3, studentName);
-            stmt.setString(4, java.time.LocalDateTime.now().toString());
-            stmt.executeUpdate();
-            ResultSet rs = stmt.getGeneratedKeys();
-            if (rs.next()) return rs.getInt(1);
+            stmt.setString(2, username);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) return new InProgressTest(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getInt(5));
         } catch (SQLException e) { e.printStackTrace(); }
-        return -1;
+        return null;
     }
 
-    public void completeTestResult(int resultId, int score, int total, String videoPath, String timeTaken) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
-            "UPDATE test_results SET score=?, total=?, end_time=?, video_path=?, time_taken=?, status='completed' WHERE id=?")) {
-            stmt.setInt(1, score);
-            stmt.setInt(2, total);
-            stmt.setString(3, java.time.LocalDateTime.now().toString());
-            stmt.setString(4, videoPath);
-            stmt.setString(5, timeTaken);
-            stmt.setInt(6, resultId);
-            stmt.executeUpdate();
+    public String getTestResultOwner(int resultId) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_TEST_RESULT_OWNER)) {
+            stmt.setInt(1, resultId);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) return rs.getString("student_username");
         } catch (SQLException e) { e.printStackTrace(); }
+        return null;
     }
 
     public boolean hasStudentTakenTest(int testId, String studentUsername) {
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
-            "SELECT COUNT(*) as count FROM test_results WHERE test_id=? AND student_username=? AND status='completed'")) {
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_TEST_TAKEN)) {
             stmt.setInt(1, testId);
             stmt.setString(2, studentUsername);
             ResultSet rs = stmt.executeQuery();
@@ -585,59 +962,134 @@ public class DatabaseManager {
         return false;
     }
 
-    public String getAllTestResultsAsJson() {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); 
+    public void writeAllTestResultsJson(JsonStreamWriter json) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); Statement stmt = conn.createStatement(); 
              ResultSet rs = stmt.executeQuery("SELECT tr.*, st.title as test_title FROM test_results tr LEFT JOIN scheduled_tests st ON tr.test_id = st.id ORDER BY tr.end_time DESC")) {
-            boolean first = true;
             while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
                 String endTime = rs.getString("end_time");
-                String dateStr = endTime != null && endTime.contains("T") ? endTime.split("T")[0] : (endTime != null ? endTime : "");
-                String timeTaken = rs.getString("time_taken");
-                json.append(String.format("{\"id\":%d,\"testId\":%d,\"testTitle\":\"%s\",\"student\":\"%s\",\"studentName\":\"%s\",\"score\":%d,\"totalQuestions\":%d,\"completedAt\":\"%s\",\"videoPath\":\"%s\",\"timeTaken\":\"%s\",\"status\":\"%s\"}",
-                    rs.getInt("id"), rs.getInt("test_id"), escape(rs.getString("test_title") != null ? rs.getString("test_title") : "Unknown Test"),
-                    escape(rs.getString("student_username")), escape(rs.getString("student_name")),
-                    rs.getInt("score"), rs.getInt("total"), dateStr,
-                    escape(rs.getString("video_path") != null ? rs.getString("video_path") : ""),
-                    escape(timeTaken != null ? timeTaken : ""),
-                    rs.getString("status")));
+                String dateStr = endTime != null && endTime.contains("T") ? endTime.split("T")[0] : endTime;
+                String title = rs.getString("test_title");
+                json.beginObject().field("id", rs.getInt("id")).field("testId", rs.getInt("test_id")).field("testTitle", title != null ? title : "Unknown Test")
+                    .field("student", rs.getString("student_username")).field("studentName", rs.getString("student_name"))
+                    .field("score", rs.getInt("score")).field("totalQuestions", rs.getInt("total")).field("completedAt", dateStr)
+                    .field("videoPath", rs.getString("video_path")).field("timeTaken", rs.getString("time_taken")).field("status", rs.getString("status")).endObject();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
     }
 
-    public String getStudentTestResults(String studentUsername) {
-        StringBuilder json = new StringBuilder("[");
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(
-            "SELECT tr.*, st.title as test_title FROM test_results tr LEFT JOIN scheduled_tests st ON tr.test_id = st.id WHERE tr.student_username=? AND tr.status='completed' ORDER BY tr.end_time DESC")) {
+    // Keyset page of completed results, newest end_time first (id breaks ties).
+    private static String testResultsPageSql(PageQuery q, List<Object> args) {
+        StringBuilder sql = new StringBuilder("SELECT tr.*, st.title as test_title FROM test_results tr LEFT JOIN scheduled_tests st ON tr.test_id = st.id WHERE tr.status='completed'");
+        if (q.student() != null) { sql.append(" AND tr.student_username = ?"); args.add(q.student()); }
+        if (q.testId() > 0) { sql.append(" AND tr.test_id = ?"); args.add(q.testId()); }
+        if (q.from() != null) { sql.append(" AND tr.end_time >= ?"); args.add(q.from()); }
+        if (q.to() != null) { sql.append(" AND tr.end_time < ?"); args.add(q.to()); }
+        if (q.afterId() >= 0) { sql.append(" AND (tr.end_time, tr.id) < (?, ?)"); args.add(q.afterTime()); args.add(q.afterId()); }
+        sql.append(" ORDER BY tr.end_time DESC, tr.id DESC LIMIT ?"); args.add(q.limit() + 1);
+        return sql.toString();
+    }
+
+    /** Completed test results, of every test or of one (testId > 0): {"count","average","videos"}, average in percent. */
+    public void writeTestResultsSummaryJson(JsonStreamWriter json, int testId) throws IOException {
+        String sql = "SELECT COUNT(*), AVG(CASE WHEN total > 0 THEN 100.0 * score / total END), COUNT(NULLIF(video_path, '')) FROM test_results WHERE status='completed'" +
+                     (testId > 0 ? " AND test_id = ?" : "");
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            if (testId > 0) stmt.setInt(1, testId);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            json.beginObject().field("count", rs.getInt(1)).field("average", round1(rs.getDouble(2))).field("videos", rs.getInt(3)).endObject();
+        } catch (SQLException e) { throw new IOException(e); }
+    }
+
+    /** One page of completed test results as {"items":[...],"nextCursor":...}; items match writeAllTestResultsJson. */
+    public void writeTestResultsPageJson(JsonStreamWriter json, PageQuery q) throws IOException {
+        List<Object> args = new ArrayList<>();
+        String sql = testResultsPageSql(q, args);
+        String next = null;
+        json.beginObject().name("items").beginArray();
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < args.size(); i++) stmt.setObject(i + 1, args.get(i));
+            ResultSet rs = stmt.executeQuery();
+            int n = 0;
+            long lastId = 0;
+            String lastEnd = null;
+            while (rs.next()) {
+                if (n++ == q.limit()) { next = PageQuery.cursor(lastEnd, lastId); break; }
+                lastId = rs.getLong("id");
+                lastEnd = rs.getString("end_time");
+                String title = rs.getString("test_title");
+                json.beginObject().field("id", lastId).field("testId", rs.getInt("test_id")).field("testTitle", title != null ? title : "Unknown Test")
+                    .field("student", rs.getString("student_username")).field("studentName", rs.getString("student_name"))
+                    .field("score", rs.getInt("score")).field("totalQuestions", rs.getInt("total")).field("completedAt", lastEnd != null && lastEnd.contains("T") ? lastEnd.split("T")[0] : lastEnd)
+                    .field("videoPath", rs.getString("video_path")).field("timeTaken", rs.getString("time_taken")).field("status", rs.getString("status")).endObject();
+            }
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray().name("nextCursor");
+        if (next != null) json.value(next); else json.nullValue();
+        json.endObject();
+    }
+
+    /**
+     * Score statistics per topic / scheduled test (by=group) or per student (by=student), with a
+     * daily trend over the last trendDays days. Percentages are 0-100, rounded to one decimal.
+     */
+    public void writeAnalyticsJson(JsonStreamWriter json, ScoreAnalytics.Source source, ScoreAnalytics.Dimension by, int trendDays) throws IOException {
+        List<ScoreAnalytics.GroupStats> groups;
+        try { groups = analytics.groupBy(source, by, trendDays); }
+        catch (SQLException e) { throw new IOException(e); }
+        json.beginObject().field("source", source.name().toLowerCase()).field("by", by.name().toLowerCase()).name("groups").beginArray();
+        for (ScoreAnalytics.GroupStats g : groups) {
+            json.beginObject().field("key", g.key()).field("count", g.count()).field("mean", round1(g.mean()))
+                .field("min", g.min()).field("p25", g.p25()).field("median", g.median()).field("p75", g.p75()).field("p90", g.p90()).field("max", g.max())
+                .field("slopePerWeek", round1(g.slopePerWeek())).name("histogram").beginArray();
+            for (int bin : g.histogram()) json.value(bin);
+            json.endArray().name("trend").beginArray();
+            for (int d = 0; d < g.trendCounts().length; d++) {
+                if (g.trendCounts()[d] == 0) continue;
+                json.beginObject().field("day", ScoreAnalytics.day(g.firstTrendDay() + d)).field("mean", round1(g.trendMeans()[d])).field("count", g.trendCounts()[d]).endObject();
+            }
+            json.endArray().endObject();
+        }
+        json.endArray().endObject();
+    }
+    /** Item statistics for one bank: [{questionId, responses, difficulty, discrimination, options:[4], skipped}]. */
+    public void writeItemAnalysisJson(JsonStreamWriter json, ItemAnalysis.Kind kind) throws IOException {
+        Map<Integer, ItemAnalysis.Item> items;
+        try { items = itemAnalysis.items(kind, questionIndex.answerKey(kind == ItemAnalysis.Kind.TEST)); }
+        catch (SQLException e) { throw new IOException(e); }
+        json.beginArray();
+        for (ItemAnalysis.Item item : items.values()) {
+            json.beginObject().field("questionId", item.questionId()).field("responses", item.responses())
+                .field("difficulty", round2(item.difficulty())).field("discrimination", round2(item.discrimination()))
+                .name("options").beginArray();
+            for (int n : item.chosen()) json.value(n);
+            json.endArray().field("skipped", item.skipped()).endObject();
+        }
+        json.endArray();
+    }
+    private static double round1(double d) { return Math.round(d * 10) / 10.0; }
+    // NaN passes through and is written as null
+    private static double round2(double d) { return Double.isNaN(d) ? d : Math.round(d * 100) / 100.0; }
+
+    public void writeStudentTestResultsJson(JsonStreamWriter json, String studentUsername) throws IOException {
+        json.beginArray();
+        try (Connection conn = reader(); PreparedStatement stmt = conn.prepareStatement(SQL_STUDENT_TEST_RESULTS)) {
             stmt.setString(1, studentUsername);
             ResultSet rs = stmt.executeQuery();
-            boolean first = true;
             while (rs.next()) {
-                if (!first) json.append(",");
-                first = false;
                 String endTime = rs.getString("end_time");
-                String dateStr = endTime != null && endTime.contains("T") ? endTime.split("T")[0] : (endTime != null ? endTime : "");
-                json.append(String.format("{\"id\":%d,\"testId\":%d,\"testTitle\":\"%s\",\"score\":%d,\"total\":%d,\"date\":\"%s\",\"status\":\"%s\"}",
-                    rs.getInt("id"), rs.getInt("test_id"), escape(rs.getString("test_title") != null ? rs.getString("test_title") : "Unknown Test"),
-                    rs.getInt("score"), rs.getInt("total"), dateStr, rs.getString("status")));
+                String dateStr = endTime != null && endTime.contains("T") ? endTime.split("T")[0] : endTime;
+                String title = rs.getString("test_title");
+                json.beginObject().field("id", rs.getInt("id")).field("testId", rs.getInt("test_id")).field("testTitle", title != null ? title : "Unknown Test")
+                    .field("score", rs.getInt("score")).field("total", rs.getInt("total")).field("date", dateStr).field("status", rs.getString("status")).endObject();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        json.append("]");
-        return json.toString();
+        } catch (SQLException e) { throw new IOException(e); }
+        json.endArray();
     }
 
     public int getTestQuestionCount(String subject) {
-        String query = subject.equals("all") ? "SELECT COUNT(*) as count FROM test_questions" : 
-            "SELECT COUNT(*) as count FROM test_questions WHERE subject=?";
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(query)) {
-            if (!subject.equals("all")) stmt.setString(1, subject);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) return rs.getInt("count");
-        } catch (SQLException e) { e.printStackTrace(); }
-        return 0;
+        return questionIndex.testCount(subject);
     }
 }
\ No newline at end of file
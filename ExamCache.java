@@ -0,0 +1,166 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serialized exam papers for tests that are about to start or are running. A paper is the test's
+ * frozen pool rendered once as one UTF-8 byte array per question; a student's payload is those
+ * arrays joined in the student's own order, so serving it touches neither SQLite nor the JSON
+ * renderer. A scan thread warms each paper, and the active tests list, vlab.exams.prewarmMinutes
+ * (default 10) before the scheduled start, so the burst of students at start time finds both
+ * built. Papers are keyed on the TableVersions stamp of scheduled_tests and test_questions; an
+ * edit makes the next request rebuild.
+ *
+ * Metrics per test: exams.{id}.hits, exams.{id}.misses, exams.{id}.hit_pct and
+ * exams.{id}.warm_micros (time of the last build).
+ */
+public class ExamCache {
+
+    private static final String[] TABLES = {"scheduled_tests", "test_questions"};
+
+    // questions[i] belongs to pool position i; null where the question was deleted after freezing.
+    // The index generation is checked too: the table stamp moves before the index is reloaded.
+    private record Paper(long stamp, long generation, byte[][] questions) {
+        boolean current(long stamp, long generation) { return this.stamp == stamp && this.generation == generation; }
+    }
+
+    private static class Slot {
+        volatile Paper paper;
+        volatile long warmMicros = -1;
+        final LongAdder hits, misses;
+        Slot(int testId) {
+            String prefix = "exams." + testId + ".";
+            hits = ServerMetrics.counter(prefix + "hits");
+            misses = ServerMetrics.counter(prefix + "misses");
+            ServerMetrics.gauge(prefix + "warm_micros", () -> warmMicros);
+            ServerMetrics.gauge(prefix + "hit_pct", () -> {
+                long h = hits.sum(), total = h + misses.sum();
+                return total == 0 ? 0 : h * 100 / total;
+            });
+        }
+    }
+
+    private final DatabaseManager db;
+    private final TableVersions versions;
+    private final CatalogCache catalog;
+    private final long leadMillis = Long.getLong("vlab.exams.prewarmMinutes", 10) * 60_000L;
+    private final long scanMillis = Long.getLong("vlab.exams.prewarmScanSeconds", 30) * 1000L;
+    private final ConcurrentHashMap<Integer, Slot> slots = new ConcurrentHashMap<>();
+
+    public ExamCache(DatabaseManager db, TableVersions versions, CatalogCache catalog) {
+        this.db = db;
+        this.versions = versions;
+        this.catalog = catalog;
+    }
+
+    /** Serves the student's paper for the test, building it first if it is not warm; 404 if there is no such test. */
+    public void serve(HttpExchange ex, int testId, String username) throws IOException {
+        Slot slot = slot(testId);
+        if (slot == null) {
+            byte[] body = "[]".getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json");
+            ex.sendResponseHeaders(404, body.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+            return;
+        }
+        long stamp = versions.version(TABLES), generation = db.questionBankGeneration();
+        Paper paper = slot.paper;
+        if (paper != null && paper.current(stamp, generation)) slot.hits.increment();
+        else {
+            slot.misses.increment();
+            paper = build(slot, testId, stamp, generation);
+        }
+
+        byte[][] questions = paper.questions();
+        int[] positions = new int[questions.length];
+        for (int i = 0; i < positions.length; i++) positions[i] = i;
+        // same shuffle as the pool ids get in QuestionPools.paperFor, so replays match
+        positions = QuestionPools.paperFor(positions, testId, username);
+        int length = 2, count = 0;
+        for (byte[] q : questions) if (q != null) { length += q.length; count++; }
+        length += Math.max(0, count - 1);
+
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.getResponseHeaders().set("Cache-Control", "no-store");
+        ex.sendResponseHeaders(200, length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write('[');
+            boolean first = true;
+            for (int p : positions) {
+                if (questions[p] == null) continue;
+                if (!first) os.write(',');
+                first = false;
+                os.write(questions[p]);
+            }
+            os.write(']');
+        }
+    }
+
+    /** Drops a deleted test's paper and its metrics. */
+    public void forget(int testId) {
+        if (slots.remove(testId) != null) ServerMetrics.remove("exams." + testId + ".");
+    }
+
+    // Slots, and with them per-test metrics, exist only for tests that exist, whatever id a client sends.
+    private Slot slot(int testId) {
+        Slot slot = slots.get(testId);
+        if (slot != null || !db.scheduledTestExists(testId)) return slot;
+        return slots.computeIfAbsent(testId, Slot::new);
+    }
+
+    /** Warms tests whose start is within the lead time and that have not ended yet. */
+    void scan() throws IOException {
+        LocalDateTime now = LocalDateTime.now();
+        boolean upcoming = false;
+        for (ScheduledTest t : db.getScheduledTests()) {
+            LocalDateTime start;
+            try { start = LocalDateTime.parse(t.scheduledDate() + "T" + t.scheduledTime()); }
+            catch (DateTimeParseException | NullPointerException e) { continue; }
+            if (now.isBefore(start.minus(Duration.ofMillis(leadMillis))) || now.isAfter(start.plusMinutes(Math.max(t.durationMinutes(), 0)))) continue;
+            upcoming = true;
+            Slot slot = slots.computeIfAbsent(t.id(), Slot::new);
+            long stamp = versions.version(TABLES), generation = db.questionBankGeneration();
+            Paper paper = slot.paper;
+            if (paper != null && paper.current(stamp, generation)) continue;
+            paper = build(slot, t.id(), stamp, generation);
+            System.out.println("Pre-warmed exam " + t.id() + " (" + t.title() + "): " + paper.questions().length + " questions in " + slot.warmMicros / 1000.0 + " ms");
+        }
+        if (upcoming) catalog.warm("active_tests", db::writeActiveTestsJson, "scheduled_tests");
+    }
+
+    public void start() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try { scan(); } catch (Exception e) { e.printStackTrace(); }
+                try { Thread.sleep(scanMillis); } catch (InterruptedException e) { return; }
+            }
+        }, "exam-prewarm");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // The stamps are read before the pool, so an edit made during the build forces another one.
+    private Paper build(Slot slot, int testId, long stamp, long generation) {
+        synchronized (slot) {
+            Paper paper = slot.paper;
+            if (paper != null && paper.current(stamp, generation)) return paper;
+            long began = System.nanoTime();
+            int[] pool = db.getQuestionPool(testId);
+            byte[][] questions = new byte[pool.length][];
+            for (int i = 0; i < pool.length; i++) {
+                QuestionIndex.TestItem item = db.getTestItem(pool[i]);
+                if (item != null) questions[i] = item.json().getBytes(StandardCharsets.UTF_8);
+            }
+            paper = new Paper(stamp, generation, questions);
+            slot.paper = paper;
+            slot.warmMicros = (System.nanoTime() - began) / 1000;
+            return paper;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-side exam clocks. An attempt runs while its test_results row is in_progress and its start
+ * plus the test's duration plus vlab.exams.graceSeconds (default 60, for the final upload) has not
+ * passed; every check reads the row, so any process of a deployment answers the same. The deadline
+ * is also put on one TimingWheel per process, which only closes rows: the expiry UPDATE repeats the
+ * deadline test in its WHERE clause, so processes expiring the same attempt, or racing a submit,
+ * change it once. When the deadline passes before the student submits, the attempt is closed as
+ * completed with what the server has, including whatever video chunks arrived; a later submit is
+ * refused. Time taken is measured here, never taken from the client. Every process reloads
+ * pending deadlines at startup.
+ *
+ * Metrics: exams.timers.pending, exams.timers.expired, exams.timers.late (submits refused).
+ */
+public class ExamTimers {
+
+    /** A submit accepted in time: the attempt's test and how long it took, capped at the duration. */
+    public record Finished(int testId, long elapsedMillis) {}
+
+    private final DatabaseManager db;
+    private final VideoChunkStore videos;
+    private final long graceMillis = Long.getLong("vlab.exams.graceSeconds", 60) * 1000L;
+    // this process's pending expiry per result id
+    private final ConcurrentHashMap<Integer, TimingWheel<Integer>.Timeout> scheduled = new ConcurrentHashMap<>();
+    private final TimingWheel<Integer> wheel = new TimingWheel<>("exam-deadlines", 1000, 64, this::onDeadline);
+    // expiries read the row and stitch the recording here, off the wheel thread
+    private final ExecutorService closer = Executors.newSingleThreadExecutor(r -> { Thread t = new Thread(r, "exam-expiry"); t.setDaemon(true); return t; });
+    private final LongAdder expired = ServerMetrics.counter("exams.timers.expired");
+    private final LongAdder late = ServerMetrics.counter("exams.timers.late");
+
+    public ExamTimers(DatabaseManager db, VideoChunkStore videos) {
+        this.db = db;
+        this.videos = videos;
+        ServerMetrics.gauge("exams.timers.pending", scheduled::size);
+    }
+
+    /** Reloads the deadlines of attempts still in progress, then starts the timer thread. */
+    public void start() {
+        int reloaded = 0;
+        for (DatabaseManager.InProgressTest t : db.getInProgressTests()) {
+            register(t.resultId(), epochMillis(t.startTime()), t.durationMinutes());
+            reloaded++;
+        }
+        if (reloaded > 0) System.out.println("Reloaded " + reloaded + " exam deadlines");
+        wheel.start();
+    }
+
+    /** Puts the attempt's deadline on this process's wheel and returns the seconds the student has left. */
+    public long register(int resultId, long startedAt, int durationMinutes) {
+        long durationMillis = Math.max(durationMinutes, 0) * 60_000L;
+        schedule(resultId, startedAt + durationMillis + graceMillis);
+        return Math.max(0, (startedAt + durationMillis - System.currentTimeMillis()) / 1000);
+    }
+
+    /**
+     * Checks a submit by the attempt's owner. Returns null if the attempt is not in progress for
+     * this user or its deadline has passed; an overdue attempt is closed here rather than waiting
+     * for a wheel. The row's conditional UPDATE still decides a race with an expiry.
+     */
+    public Finished finish(int resultId, String username) {
+        DatabaseManager.InProgressTest t = db.getInProgressTest(resultId);
+        if (t == null || !t.username().equals(username)) { late.increment(); return null; }
+        long now = System.currentTimeMillis(), startedAt = epochMillis(t.startTime());
+        if (now > deadline(t)) {
+            late.increment();
+            close(resultId, t);
+            return null;
+        }
+        return new Finished(t.testId(), Math.min(now - startedAt, Math.max(t.durationMinutes(), 0) * 60_000L));
+    }
+
+    /** Drops the local expiry of an attempt whose submit was saved. */
+    public void completed(int resultId) {
+        TimingWheel<Integer>.Timeout timeout = scheduled.remove(resultId);
+        if (timeout != null) timeout.cancel();
+    }
+
+    /** True while the attempt is in progress: started, not submitted, and not past its deadline. */
+    public boolean isRunning(int resultId) { return running(db.getInProgressTest(resultId)); }
+
+    /** True while the student has an attempt at the test in progress. */
+    public boolean isRunning(int testId, String username) { return running(db.getInProgressTest(testId, username)); }
+
+    /** test_results.start_time as epoch millis; an unreadable one counts as now. */
+    static long epochMillis(String startTime) {
+        try { return LocalDateTime.parse(startTime).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(); }
+        catch (DateTimeParseException | NullPointerException e) { return System.currentTimeMillis(); }
+    }
+
+    /** The time_taken text stored with a result, in the same form the exam page always used. */
+    static String minutes(long millis) { return Math.round(millis / 60000.0) + " min"; }
+
+    private boolean running(DatabaseManager.InProgressTest t) { return t != null && System.currentTimeMillis() <= deadline(t); }
+
+    private long deadline(DatabaseManager.InProgressTest t) {
+        return epochMillis(t.startTime()) + Math.max(t.durationMinutes(), 0) * 60_000L + graceMillis;
+    }
+
+    private void schedule(int resultId, long deadline) {
+        TimingWheel<Integer>.Timeout old = scheduled.put(resultId, wheel.schedule(resultId, deadline));
+        if (old != null) old.cancel();
+    }
+
+    // Runs on the wheel thread and hands off; the write is queued without waiting, so a cohort
+    // expiring together is group-committed. A test lengthened since is rescheduled.
+    private void onDeadline(Integer resultId) {
+        scheduled.remove(resultId);
+        closer.execute(() -> expire(resultId));
+    }
+
+    private void expire(int resultId) {
+        DatabaseManager.InProgressTest t = db.getInProgressTest(resultId);
+        if (t == null) return;
+        if (System.currentTimeMillis() <= deadline(t)) schedule(resultId, deadline(t));
+        else close(resultId, t);
+    }
+
+    // The chunks are stitched before the row is closed, so a closed attempt's recording is linked;
+    // if a submit won the race the row keeps its own video_path.
+    private void close(int resultId, DatabaseManager.InProgressTest t) {
+        expired.increment();
+        String video = null;
+        try { video = videos.finalizeReceived(resultId, VideoChunkStore.videoFileName(t.username(), resultId)); }
+        catch (IOException e) { e.printStackTrace(); }
+        db.expireTestResult(resultId, t.testId(), minutes(Math.max(t.durationMinutes(), 0) * 60_000L), graceMillis, video);
+    }
+}
@@ -0,0 +1,166 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Streams files from disk with HTTP Range support (single and multi-range, If-Range, 416).
+ * Bytes go through FileChannel.transferTo straight into the response body, so heap use stays
+ * flat no matter how large the video or material is.
+ */
+public class FileStreamer {
+
+    private static final int MAX_RANGES = 16;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private record Range(long start, long end) {
+        long length() { return end - start + 1; }
+    }
+
+    /** Resolves name inside dir, or returns null if it does not exist or escapes the directory. */
+    public static File resolve(String dir, String name) throws IOException {
+        File base = new File(dir).getCanonicalFile();
+        File file = new File(base, name).getCanonicalFile();
+        if (!file.toPath().startsWith(base.toPath()) || !file.isFile()) return null;
+        return file;
+    }
+
+    public static void stream(HttpExchange ex, File file, String contentType, String contentDisposition) throws IOException {
+        long length = file.length();
+        long modified = file.lastModified() / 1000 * 1000;
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(modified) + "\"";
+        String lastModified = HTTP_DATE.format(Instant.ofEpochMilli(modified));
+
+        ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+        ex.getResponseHeaders().set("ETag", etag);
+        ex.getResponseHeaders().set("Last-Modified", lastModified);
+        if (contentDisposition != null) ex.getResponseHeaders().set("Content-Disposition", contentDisposition);
+
+        String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return;
+        }
+
+        String rangeHeader = ex.getRequestHeaders().getFirst("Range");
+        String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+        if (rangeHeader != null && ifRange != null && !ifRange.trim().equals(etag) && !ifRange.trim().equals(lastModified)) {
+            rangeHeader = null; // representation changed since the client's partial copy, send it whole
+        }
+
+        List<Range> ranges = rangeHeader == null ? null : parseRanges(rangeHeader, length);
+        boolean head = "HEAD".equals(ex.getRequestMethod());
+
+        if (ranges == null) {
+            ex.getResponseHeaders().set("Content-Type", contentType);
+            ex.sendResponseHeaders(200, head || length == 0 ? -1 : length);
+            if (!head && length > 0) transfer(ex, file, List.of(new Range(0, length - 1)), null, contentType, length);
+            ex.close();
+            return;
+        }
+        if (ranges.isEmpty()) {
+            ex.getResponseHeaders().set("Content-Range", "bytes */" + length);
+            ex.sendResponseHeaders(416, -1);
+            ex.close();
+            return;
+        }
+
+        if (ranges.size() == 1) {
+            Range r = ranges.get(0);
+            ex.getResponseHeaders().set("Content-Type", contentType);
+            ex.getResponseHeaders().set("Content-Range", "bytes " + r.start() + "-" + r.end() + "/" + length);
+            ex.sendResponseHeaders(206, head ? -1 : r.length());
+            if (!head) transfer(ex, file, ranges, null, contentType, length);
+            ex.close();
+            return;
+        }
+
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        long total = 0;
+        for (Range r : ranges) total += partHeader(boundary, contentType, r, length).length + r.length();
+        total += closing(boundary).length;
+        ex.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        ex.sendResponseHeaders(206, head ? -1 : total);
+        if (!head) transfer(ex, file, ranges, boundary, contentType, length);
+        ex.close();
+    }
+
+    private static void transfer(HttpExchange ex, File file, List<Range> ranges, String boundary, String contentType, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            OutputStream os = ex.getResponseBody();
+            WritableByteChannel out = Channels.newChannel(os);
+            for (Range r : ranges) {
+                if (boundary != null) os.write(partHeader(boundary, contentType, r, length));
+                long pos = r.start(), remaining = r.length();
+                while (remaining > 0) {
+                    long n = channel.transferTo(pos, remaining, out);
+                    if (n <= 0) break;
+                    pos += n;
+                    remaining -= n;
+                }
+            }
+            if (boundary != null) os.write(closing(boundary));
+            os.close();
+        }
+    }
+
+    private static byte[] partHeader(String boundary, String contentType, Range r, long length) {
+        return ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: bytes " + r.start() + "-" + r.end() + "/" + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] closing(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns null when the header is malformed (serve the full file), an empty list when no
+     * range is satisfiable (416), otherwise the sorted and coalesced ranges.
+     */
+    private static List<Range> parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes=")) return null;
+        List<Range> ranges = new ArrayList<>();
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            long start, end;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue;
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (end < start) return null;
+                    end = Math.min(end, length - 1);
+                }
+            } catch (NumberFormatException e) { return null; }
+            if (start >= length) continue;
+            ranges.add(new Range(start, end));
+        }
+        if (ranges.size() > MAX_RANGES) return null;
+        ranges.sort((a, b) -> Long.compare(a.start(), b.start()));
+        List<Range> merged = new ArrayList<>();
+        for (Range r : ranges) {
+            Range last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && r.start() <= last.end() + 1) merged.set(merged.size() - 1, new Range(last.start(), Math.max(last.end(), r.end())));
+            else merged.add(r);
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,106 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Per-question statistics over answer_responses: difficulty (share of attempts that chose the
+ * correct option), discrimination (point-biserial correlation between getting the question right
+ * and the rest of the attempt's score) and how often each option was chosen. Responses are read
+ * in primary-key order, so each question is one contiguous run and the runs are scored in
+ * parallel. Results are cached per kind and rebuilt when the responses, the bank or the scores
+ * change, at most once every vlab.items.refreshSeconds (default 30).
+ */
+class ItemAnalysis {
+
+    /** Stored as the ordinal in answer_responses.kind; result_id points at quiz_performance or test_results. */
+    enum Kind { QUIZ, TEST }
+
+    static final int SKIPPED = -1;
+
+    /** chosen counts options 0-3; answers outside them, unanswered included, are counted in skipped. */
+    record Item(int questionId, int responses, double difficulty, double discrimination, int[] chosen, int skipped) {}
+
+    private record Cached(long stamp, long builtAt, Map<Integer, Item> items) {}
+
+    private static final String SQL_QUIZ = "SELECT r.question_id, r.chosen, p.score, p.total FROM answer_responses r JOIN quiz_performance p ON p.id = r.result_id WHERE r.kind = 0 ORDER BY r.question_id";
+    private static final String SQL_TEST = "SELECT r.question_id, r.chosen, t.score, t.total FROM answer_responses r JOIN test_results t ON t.id = r.result_id WHERE r.kind = 1 AND t.status = 'completed' ORDER BY r.question_id";
+
+    private final ConnectionPool pool;
+    private final TableVersions versions;
+    private final long refreshMillis = Integer.getInteger("vlab.items.refreshSeconds", 30) * 1000L;
+    private final Cached[] cache = new Cached[Kind.values().length];
+    private final LongAdder refreshes = ServerMetrics.counter("items.refreshes");
+
+    ItemAnalysis(ConnectionPool pool, TableVersions versions) {
+        this.pool = pool;
+        this.versions = versions;
+    }
+
+    /** Statistics keyed by question id, scored against key (question id to correct option). */
+    Map<Integer, Item> items(Kind kind, Map<Integer, Integer> key) throws SQLException {
+        long stamp = kind == Kind.QUIZ ? versions.version("answer_responses", "quiz_performance", "questions")
+                                       : versions.version("answer_responses", "test_results", "test_questions");
+        synchronized (cache) {
+            Cached c = cache[kind.ordinal()];
+            long now = System.currentTimeMillis();
+            if (c != null && (c.stamp() == stamp || now - c.builtAt() < refreshMillis)) return c.items();
+            c = new Cached(stamp, now, analyse(kind, key));
+            cache[kind.ordinal()] = c;
+            refreshes.increment();
+            return c.items();
+        }
+    }
+
+    private Map<Integer, Item> analyse(Kind kind, Map<Integer, Integer> key) throws SQLException {
+        int[] question = new int[1024], score = new int[1024], total = new int[1024];
+        byte[] chosen = new byte[1024];
+        int size = 0;
+        try (Connection conn = pool.reader(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(kind == Kind.QUIZ ? SQL_QUIZ : SQL_TEST)) {
+            while (rs.next()) {
+                if (size == question.length) {
+                    int n = size * 2;
+                    question = Arrays.copyOf(question, n); chosen = Arrays.copyOf(chosen, n);
+                    score = Arrays.copyOf(score, n); total = Arrays.copyOf(total, n);
+                }
+                question[size] = rs.getInt(1); chosen[size] = (byte) rs.getInt(2); score[size] = rs.getInt(3); total[size] = rs.getInt(4);
+                size++;
+            }
+        }
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < size; i++) if (i == 0 || question[i] != question[i - 1]) starts.add(i);
+        starts.add(size);
+
+        int[] q = question, s = score, t = total;
+        byte[] c = chosen;
+        return IntStream.range(0, starts.size() - 1).parallel()
+            .mapToObj(run -> item(q, c, s, t, starts.get(run), starts.get(run + 1), key.get(q[starts.get(run)])))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toUnmodifiableMap(Item::questionId, Function.identity()));
+    }
+
+    // rows [from, to) all belong to one question; null when the question is no longer in the bank
+    private static Item item(int[] question, byte[] chosen, int[] score, int[] total, int from, int to, Integer correct) {
+        if (correct == null) return null;
+        int[] options = new int[4];
+        int skipped = 0;
+        double sx = 0, sy = 0, syy = 0, sxy = 0;
+        for (int i = from; i < to; i++) {
+            int choice = chosen[i];
+            if (choice >= 0 && choice < 4) options[choice]++; else skipped++;
+            double x = choice == correct ? 1 : 0;
+            // the rest of the attempt, so the question does not correlate with itself
+            double y = total[i] > 1 ? Math.max(0, Math.min(1, (score[i] - x) / (total[i] - 1))) : 0;
+            sx += x; sy += y; syy += y * y; sxy += x * y;
+        }
+        int n = to - from;
+        double denom = Math.sqrt((n * sx - sx * sx) * (n * syy - sy * sy));
+        return new Item(question[from], n, sx / n, denom == 0 ? Double.NaN : (n * sxy - sx * sy) / denom, options, skipped);
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes JSON as escaped UTF-8 straight into an output stream through one fixed buffer, so a
+ * large list goes from the ResultSet to the socket without being held as a String or byte[].
+ * Commas are inserted automatically; names and values must be written in a valid order.
+ */
+public class JsonStreamWriter implements Closeable {
+
+    /** Something that knows how to write itself, e.g. a query streamed row by row. */
+    public interface Source { void writeTo(JsonStreamWriter json) throws IOException; }
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos;
+    private boolean needComma;
+
+    public JsonStreamWriter(OutputStream out) { this(out, 8192); }
+
+    public JsonStreamWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buf = new byte[bufferSize];
+    }
+
+    public JsonStreamWriter beginArray() throws IOException { separate(); raw('['); needComma = false; return this; }
+    public JsonStreamWriter endArray() throws IOException { raw(']'); needComma = true; return this; }
+    public JsonStreamWriter beginObject() throws IOException { separate(); raw('{'); needComma = false; return this; }
+    public JsonStreamWriter endObject() throws IOException { raw('}'); needComma = true; return this; }
+
+    public JsonStreamWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        raw(':');
+        needComma = false;
+        return this;
+    }
+
+    /** A string value; null is written as "" like the hand-built responses always did. */
+    public JsonStreamWriter value(String s) throws IOException { separate(); string(s == null ? "" : s); needComma = true; return this; }
+
+    public JsonStreamWriter nullValue() throws IOException {
+        separate();
+        raw('n'); raw('u'); raw('l'); raw('l');
+        needComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(long n) throws IOException {
+        separate();
+        if (pos + 20 > buf.length) drain();
+        if (n < 0) buf[pos++] = '-'; else n = -n; // digits are taken from the negative side so Long.MIN_VALUE fits
+        int start = pos;
+        do { buf[pos++] = (byte) ('0' - n % 10); n /= 10; } while (n != 0);
+        for (int i = start, j = pos - 1; i < j; i++, j--) { byte t = buf[i]; buf[i] = buf[j]; buf[j] = t; }
+        needComma = true;
+        return this;
+    }
+
+    /** Finite doubles as Double.toString writes them; NaN and the infinities become null. */
+    public JsonStreamWriter value(double d) throws IOException {
+        if (Double.isNaN(d) || Double.isInfinite(d)) return nullValue();
+        separate();
+        String s = Double.toString(d);
+        for (int i = 0; i < s.length(); i++) raw(s.charAt(i));
+        needComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter field(String name, String value) throws IOException { return name(name).value(value); }
+    public JsonStreamWriter field(String name, long value) throws IOException { return name(name).value(value); }
+    public JsonStreamWriter field(String name, double value) throws IOException { return name(name).value(value); }
+
+    public void flush() throws IOException { drain(); out.flush(); }
+
+    @Override
+    public void close() throws IOException { drain(); out.close(); }
+
+    private void separate() throws IOException { if (needComma) raw(','); }
+
+    private void string(String s) throws IOException {
+        raw('"');
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (pos + 6 > buf.length) drain();
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') { buf[pos++] = (byte) c; continue; }
+            switch (c) {
+                case '"': escape('"'); break;
+                case '\\': escape('\\'); break;
+                case '\n': escape('n'); break;
+                case '\r': escape('r'); break;
+                case '\t': escape('t'); break;
+                case '\b': escape('b'); break;
+                case '\f': escape('f'); break;
+                default:
+                    if (c < 0x20) {
+                        buf[pos++] = '\\'; buf[pos++] = 'u'; buf[pos++] = '0'; buf[pos++] = '0';
+                        buf[pos++] = HEX[c >> 4]; buf[pos++] = HEX[c & 0xF];
+                    } else if (c < 0x800) {
+                        buf[pos++] = (byte) (0xC0 | c >> 6);
+                        buf[pos++] = (byte) (0x80 | c & 0x3F);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        buf[pos++] = (byte) (0xF0 | cp >> 18);
+                        buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                        buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                        buf[pos++] = (byte) (0x80 | cp & 0x3F);
+                    } else if (Character.isSurrogate(c)) {
+                        buf[pos++] = '?'; // unpaired surrogate, as String.getBytes would write it
+                    } else {
+                        buf[pos++] = (byte) (0xE0 | c >> 12);
+                        buf[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                        buf[pos++] = (byte) (0x80 | c & 0x3F);
+                    }
+            }
+        }
+        raw('"');
+    }
+
+    private void escape(char c) { buf[pos++] = '\\'; buf[pos++] = (byte) c; }
+
+    private void raw(char c) throws IOException {
+        if (pos == buf.length) drain();
+        buf[pos++] = (byte) c;
+    }
+
+    private void drain() throws IOException {
+        if (pos > 0) { out.write(buf, 0, pos); pos = 0; }
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Streaming multipart/form-data parser. The body is read through one fixed buffer and scanned
+ * for the boundary with Boyer-Moore-Horspool; file parts are spooled straight to disk and text
+ * fields are kept in memory up to a small cap. Memory per upload does not depend on file size.
+ */
+public class MultipartParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int MAX_FIELD_SIZE = 64 * 1024;
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** Thrown when the body or a single part is larger than the configured limit (maps to 413). */
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+        public LimitExceededException(String message) { super(message); }
+    }
+
+    public record Part(String name, String filename, String contentType, String value, Path file, long size) {}
+
+    /** Parsed form; closing it deletes any spooled file the caller did not move away. */
+    public static class Form implements Closeable {
+        private final Map<String, Part> parts = new HashMap<>();
+
+        public String field(String name) {
+            Part p = parts.get(name);
+            return p == null || p.value() == null ? "" : p.value().trim();
+        }
+
+        public Part file(String name) {
+            Part p = parts.get(name);
+            return p != null && p.file() != null ? p : null;
+        }
+
+        @Override
+        public void close() {
+            for (Part p : parts.values()) {
+                if (p.file() != null) { try { Files.deleteIfExists(p.file()); } catch (IOException e) { e.printStackTrace(); } }
+            }
+        }
+    }
+
+    private final long maxBodySize;
+    private final long maxPartSize;
+
+    public MultipartParser(long maxBodySize, long maxPartSize) {
+        this.maxBodySize = maxBodySize;
+        this.maxPartSize = maxPartSize;
+    }
+
+    public static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.contains("multipart/form-data")) return null;
+        int i = contentType.indexOf("boundary=");
+        if (i < 0) return null;
+        String b = contentType.substring(i + 9);
+        int semi = b.indexOf(';');
+        if (semi >= 0) b = b.substring(0, semi);
+        b = b.trim();
+        if (b.startsWith("\"") && b.endsWith("\"") && b.length() > 1) b = b.substring(1, b.length() - 1);
+        return b.isEmpty() ? null : b;
+    }
+
+    /** Parses the body, spooling file parts into spoolDir (use the destination directory so a move is a rename). */
+    public Form parse(InputStream body, String boundary, Path spoolDir) throws IOException {
+        Form form = new Form();
+        Scanner in = new Scanner(body, maxBodySize);
+        // The first delimiter has no leading CRLF, so search for the bare "--boundary" once.
+        byte[] first = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        try {
+            if (!in.skipUntil(first)) throw new IOException("Multipart boundary not found");
+            while (true) {
+                in.require(2);
+                if (in.peek(0) == '-' && in.peek(1) == '-') break; // closing delimiter
+                in.skipLineEnd();
+
+                ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+                if (!in.readUntil(HEADER_END, new LimitedSink(headerBytes, MAX_HEADER_SIZE, "Part headers"))) throw new IOException("Truncated part headers");
+                String headers = headerBytes.toString(StandardCharsets.UTF_8);
+                String name = param(headers, "name");
+                String filename = param(headers, "filename");
+                String type = header(headers, "content-type");
+
+                if (filename != null) {
+                    Path tmp = Files.createFile(spoolDir.resolve("upload-" + UUID.randomUUID() + ".part"));
+                    form.parts.put(name, new Part(name, filename, type, null, tmp, 0)); // registered first so close() cleans it up on failure
+                    long size;
+                    try (OutputStream os = Files.newOutputStream(tmp)) {
+                        LimitedSink sink = new LimitedSink(os, maxPartSize, "Part '" + name + "'");
+                        if (!in.readUntil(delimiter, sink)) throw new IOException("Truncated multipart body");
+                        size = sink.written;
+                    }
+                    form.parts.put(name, new Part(name, filename, type, null, tmp, size));
+                } else {
+                    ByteArrayOutputStream value = new ByteArrayOutputStream();
+                    if (!in.readUntil(delimiter, new LimitedSink(value, MAX_FIELD_SIZE, "Field '" + name + "'"))) throw new IOException("Truncated multipart body");
+                    if (name != null) form.parts.put(name, new Part(name, null, type, value.toString(StandardCharsets.UTF_8), null, value.size()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            form.close();
+            throw e;
+        }
+        return form;
+    }
+
+    private static String param(String headers, String key) {
+        String lower = headers.toLowerCase();
+        int from = 0;
+        while (true) {
+            int i = lower.indexOf(key + "=\"", from);
+            if (i < 0) return null;
+            // make sure we matched "name=" and not the tail of "filename="
+            if (i == 0 || !Character.isLetter(lower.charAt(i - 1))) {
+                int start = i + key.length() + 2;
+                int end = headers.indexOf('"', start);
+                return end < 0 ? null : headers.substring(start, end);
+            }
+            from = i + 1;
+        }
+    }
+
+    private static String header(String headers, String key) {
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(key)) return line.substring(colon + 1).trim();
+        }
+        return null;
+    }
+
+    private static class LimitedSink {
+        final OutputStream out;
+        final long limit;
+        final String what;
+        long written;
+
+        LimitedSink(OutputStream out, long limit, String what) { this.out = out; this.limit = limit; this.what = what; }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            written += len;
+            if (written > limit) throw new LimitExceededException(what + " exceeds " + limit + " bytes");
+            out.write(b, off, len);
+        }
+    }
+
+    /** Fixed-size sliding window over the request body with a Horspool search. */
+    private static class Scanner {
+        private final InputStream in;
+        private final long maxBodySize;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int start, end;
+        private long consumed;
+        private boolean eof;
+
+        Scanner(InputStream in, long maxBodySize) { this.in = in; this.maxBodySize = maxBodySize; }
+
+        private boolean fill() throws IOException {
+            if (eof) return false;
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) { eof = true; return false; }
+            consumed += n;
+            if (consumed > maxBodySize) throw new LimitExceededException("Request body exceeds " + maxBodySize + " bytes");
+            end += n;
+            return true;
+        }
+
+        void require(int n) throws IOException {
+            while (end - start < n) if (!fill()) throw new IOException("Truncated multipart body");
+        }
+
+        byte peek(int i) { return buf[start + i]; }
+
+        void skipLineEnd() throws IOException {
+            // transport padding after a delimiter is allowed before the CRLF
+            while (true) {
+                require(1);
+                byte b = buf[start++];
+                if (b == '\n') return;
+            }
+        }
+
+        boolean skipUntil(byte[] pattern) throws IOException {
+            return readUntil(pattern, null);
+        }
+
+        /** Passes everything before the next occurrence of pattern to sink and consumes the pattern. */
+        boolean readUntil(byte[] pattern, LimitedSink sink) throws IOException {
+            int[] shift = shiftTable(pattern);
+            int m = pattern.length;
+            while (true) {
+                int i = start;
+                while (i + m <= end) {
+                    int j = m - 1;
+                    while (j >= 0 && buf[i + j] == pattern[j]) j--;
+                    if (j < 0) {
+                        if (sink != null) sink.write(buf, start, i - start);
+                        start = i + m;
+                        return true;
+                    }
+                    i += shift[buf[i + m - 1] & 0xFF];
+                }
+                // no match in the window; everything except a possible pattern prefix at the tail is safe to emit
+                int safe = Math.max(start, end - (m - 1));
+                if (sink != null && safe > start) sink.write(buf, start, safe - start);
+                start = safe;
+                if (!fill()) return false;
+            }
+        }
+
+        private static int[] shiftTable(byte[] pattern) {
+            int[] shift = new int[256];
+            java.util.Arrays.fill(shift, pattern.length);
+            for (int k = 0; k < pattern.length - 1; k++) shift[pattern[k] & 0xFF] = pattern.length - 1 - k;
+            return shift;
+        }
+    }
+}
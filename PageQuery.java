@@ -0,0 +1,48 @@
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Filters and position for one page of a keyset-paginated list. The cursor is an opaque token
+ * holding the sort key of the last row already sent (afterTime, afterId); the next page starts
+ * strictly after it, so each page is an index seek plus limit rows however long the table is.
+ * from is inclusive and to is exclusive (the day after the requested end date).
+ */
+public record PageQuery(String student, String topic, int testId, String from, String to, String afterTime, long afterId, int limit) {
+
+    public static final int MAX_LIMIT = 500;
+
+    /**
+     * Reads student, topic, testId, from and to (yyyy-MM-dd), cursor and limit from request
+     * parameters. Malformed values throw a RuntimeException; handlers answer 400.
+     */
+    public static PageQuery fromParams(Map<String, String> p) {
+        int limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(p.getOrDefault("limit", "50"))));
+        String testId = blank(p.get("testId"));
+        String from = blank(p.get("from")), to = blank(p.get("to"));
+        String afterTime = null;
+        long afterId = -1;
+        String cursor = blank(p.get("cursor"));
+        if (cursor != null) {
+            String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int sep = key.lastIndexOf('\n');
+            if (sep < 0) throw new IllegalArgumentException("Bad cursor");
+            afterTime = key.substring(0, sep);
+            afterId = Long.parseLong(key.substring(sep + 1));
+        }
+        return new PageQuery(blank(p.get("student")), blank(p.get("topic")),
+                             testId == null || testId.equals("all") ? 0 : Integer.parseInt(testId),
+                             from == null ? null : LocalDate.parse(from).toString(),
+                             to == null ? null : LocalDate.parse(to).plusDays(1).toString(),
+                             afterTime, afterId, limit);
+    }
+
+    /** The token for a page that continues after the row with this sort key. */
+    public static String cursor(String time, long id) {
+        String key = (time == null ? "" : time) + "\n" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String blank(String s) { return s == null || s.isEmpty() ? null : s; }
+}
@@ -1,7 +1,12 @@
 public record Question(
+    int id, // questions.id; 0 for questions not loaded from the database
     String topic, 
     String question, 
     String[] options, 
     int correctIndex, 
     String explanation // <--- This must be here!
-) {}
\ No newline at end of file
+) {
+    public Question(String topic, String question, String[] options, int correctIndex, String explanation) {
+        this(0, topic, question, options, correctIndex, explanation);
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory copy of the quiz and exam question banks, partitioned by quiz topic and exam
+ * subject. The whole index is an immutable snapshot behind an AtomicReference: readers never
+ * lock, and an edit builds new arrays and swaps the snapshot in one step. Drawing k questions is
+ * a partial Fisher-Yates shuffle over index positions, so it costs O(k) regardless of bank size
+ * and never touches the database.
+ */
+public class QuestionIndex {
+
+    /** One exam question with its JSON object pre-rendered for the exam payload. */
+    public record TestItem(int id, String subject, int correctIndex, String json) {}
+
+    private record Snapshot(Map<String, Question[]> quizByTopic, Map<Integer, Question> quizById, Map<String, TestItem[]> testsBySubject, TestItem[] allTests, Map<Integer, TestItem> testsById) {}
+
+    private static final ThreadLocal<SplittableRandom> RANDOM = ThreadLocal.withInitial(SplittableRandom::new);
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(Map.of(), Map.of(), Map.of(), new TestItem[0], Map.of()));
+    private final LongAdder rebuilds = ServerMetrics.counter("questions.index.rebuilds");
+
+    public QuestionIndex() {
+        ServerMetrics.gauge("questions.index.quiz", () -> count(snapshot.get().quizByTopic()));
+        ServerMetrics.gauge("questions.index.test", () -> snapshot.get().allTests().length);
+    }
+
+    public void replaceQuiz(List<Question> questions) {
+        Map<String, List<Question>> grouped = new HashMap<>();
+        Map<Integer, Question> byId = new HashMap<>();
+        for (Question q : questions) { grouped.computeIfAbsent(q.topic(), t -> new ArrayList<>()).add(q); byId.put(q.id(), q); }
+        Map<String, Question[]> byTopic = new HashMap<>();
+        grouped.forEach((topic, list) -> byTopic.put(topic, list.toArray(new Question[0])));
+        snapshot.updateAndGet(s -> new Snapshot(Map.copyOf(byTopic), Map.copyOf(byId), s.testsBySubject(), s.allTests(), s.testsById()));
+        rebuilds.increment();
+    }
+
+    public void replaceTests(List<TestItem> items) {
+        Map<String, List<TestItem>> grouped = new HashMap<>();
+        for (TestItem t : items) grouped.computeIfAbsent(t.subject() == null ? "" : t.subject(), s -> new ArrayList<>()).add(t);
+        Map<String, TestItem[]> bySubject = new HashMap<>();
+        grouped.forEach((subject, list) -> bySubject.put(subject, list.toArray(new TestItem[0])));
+        TestItem[] all = items.toArray(new TestItem[0]);
+        Map<Integer, TestItem> byId = new HashMap<>();
+        for (TestItem t : all) byId.put(t.id(), t);
+        snapshot.updateAndGet(s -> new Snapshot(s.quizByTopic(), s.quizById(), Map.copyOf(bySubject), all, Map.copyOf(byId)));
+        rebuilds.increment();
+    }
+
+    /** Up to k distinct quiz questions of the topic in random order. */
+    public List<Question> sampleQuiz(String topic, int k) {
+        Question[] pool = snapshot.get().quizByTopic().getOrDefault(topic, new Question[0]);
+        List<Question> out = new ArrayList<>(Math.min(k, pool.length));
+        for (int i : sample(pool.length, k)) out.add(pool[i]);
+        return out;
+    }
+
+    /** Up to k distinct exam questions, from one subject or from all when subject is null or "all". */
+    public List<TestItem> sampleTests(String subject, int k) {
+        Snapshot s = snapshot.get();
+        TestItem[] pool = subject == null || subject.isEmpty() || subject.equals("all") ? s.allTests() : s.testsBySubject().getOrDefault(subject, new TestItem[0]);
+        List<TestItem> out = new ArrayList<>(Math.min(k, pool.length));
+        for (int i : sample(pool.length, k)) out.add(pool[i]);
+        return out;
+    }
+
+    /** The quiz question with this id, or null if it is no longer in the bank. */
+    public Question quiz(int id) { return snapshot.get().quizById().get(id); }
+
+    /** The exam question with this id, or null if it is no longer in the bank. */
+    public TestItem test(int id) { return snapshot.get().testsById().get(id); }
+
+    /** Current correct option per question id, quiz bank or exam bank. */
+    public Map<Integer, Integer> answerKey(boolean exam) {
+        Snapshot s = snapshot.get();
+        Map<Integer, Integer> key = new HashMap<>();
+        if (exam) for (TestItem t : s.allTests()) key.put(t.id(), t.correctIndex());
+        else for (Question[] pool : s.quizByTopic().values()) for (Question q : pool) key.put(q.id(), q.correctIndex());
+        return key;
+    }
+
+    /** Number of rebuilds so far; changes whenever either half of the index is replaced. */
+    public long generation() { return rebuilds.sum(); }
+
+    public int testCount(String subject) {
+        Snapshot s = snapshot.get();
+        if (subject == null || subject.equals("all")) return s.allTests().length;
+        return s.testsBySubject().getOrDefault(subject, new TestItem[0]).length;
+    }
+
+    /**
+     * k distinct positions out of 0..n-1. Runs the first k steps of Fisher-Yates on a virtual
+     * identity array; only displaced slots are remembered, so nothing of size n is allocated.
+     */
+    static int[] sample(int n, int k) {
+        k = Math.max(0, Math.min(k, n));
+        int[] out = new int[k];
+        SplittableRandom random = RANDOM.get();
+        Map<Integer, Integer> displaced = new HashMap<>(k * 2);
+        for (int i = 0; i < k; i++) {
+            int j = i + random.nextInt(n - i);
+            out[i] = displaced.getOrDefault(j, j);
+            displaced.put(j, displaced.getOrDefault(i, i));
+        }
+        return out;
+    }
+
+    private static int count(Map<String, Question[]> partitions) {
+        int n = 0;
+        for (Question[] p : partitions.values()) n += p.length;
+        return n;
+    }
+}
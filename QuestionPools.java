@@ -0,0 +1,36 @@
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Frozen exam papers. A test's questions are drawn once from its subject's bank and stored in
+ * scheduled_tests.question_pool as packed 4-byte ids. Each student gets that pool in an order
+ * fixed by (test id, username), so serving a paper is one O(n) shuffle and any student's paper
+ * can be rebuilt exactly later.
+ */
+class QuestionPools {
+
+    static byte[] pack(int[] ids) {
+        ByteBuffer buf = ByteBuffer.allocate(ids.length * 4);
+        for (int id : ids) buf.putInt(id);
+        return buf.array();
+    }
+
+    static int[] unpack(byte[] blob) {
+        ByteBuffer buf = ByteBuffer.wrap(blob);
+        int[] ids = new int[blob.length / 4];
+        for (int i = 0; i < ids.length; i++) ids[i] = buf.getInt();
+        return ids;
+    }
+
+    /** The pool in this student's order; the same arguments always give the same order. */
+    static int[] paperFor(int[] pool, int testId, String username) {
+        int[] paper = pool.clone();
+        // String.hashCode is specified by the language, so the seed is stable across JVMs and restarts
+        SplittableRandom random = new SplittableRandom(((long) testId << 32) ^ (username.hashCode() & 0xFFFFFFFFL));
+        for (int i = paper.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = paper[i]; paper[i] = paper[j]; paper[j] = t;
+        }
+        return paper;
+    }
+}
@@ -0,0 +1,77 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor handed to the HttpServer. Wraps one of three execution modes and tracks how many
+ * requests are waiting for a thread and how many are currently running.
+ *
+ *   virtual - one virtual thread per request (JDK 21+; older JDKs run as pool and report pool)
+ *   pool    - fixed pool of platform threads (-Dvlab.pool.size, default 4 x cores)
+ *   single  - legacy behaviour, every request runs on the HttpServer dispatcher thread
+ */
+public class RequestExecutor implements Executor {
+
+    public enum Mode { VIRTUAL, POOL, SINGLE }
+
+    private final Mode mode;
+    private final Executor delegate;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+
+    private RequestExecutor(Mode mode, Executor delegate) {
+        this.mode = mode;
+        this.delegate = delegate;
+        String prefix = "executor." + mode.name().toLowerCase() + ".";
+        ServerMetrics.gauge(prefix + "queued", queued::get);
+        ServerMetrics.gauge(prefix + "active", active::get);
+    }
+
+    public static RequestExecutor create(String modeName, int poolSize) {
+        Mode mode;
+        try { mode = Mode.valueOf(modeName.trim().toUpperCase()); }
+        catch (IllegalArgumentException e) { System.out.println("Unknown executor mode '" + modeName + "', using pool"); mode = Mode.POOL; }
+
+        if (mode == Mode.VIRTUAL) {
+            Executor virtual = virtualThreadExecutor();
+            if (virtual != null) return new RequestExecutor(mode, virtual);
+            System.out.println("Virtual threads need JDK 21+, using pool");
+            mode = Mode.POOL;
+        }
+        switch (mode) {
+            case SINGLE:  return new RequestExecutor(mode, Runnable::run);
+            default:      return new RequestExecutor(mode, Executors.newFixedThreadPool(poolSize, namedThreads("http-worker-")));
+        }
+    }
+
+    public Mode getMode() { return mode; }
+
+    @Override
+    public void execute(Runnable task) {
+        queued.incrementAndGet();
+        ServerMetrics.counter("executor.submitted").increment();
+        delegate.execute(() -> {
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            try { task.run(); }
+            finally { active.decrementAndGet(); }
+        });
+    }
+
+    // Looked up reflectively so the server still compiles and runs on JDK 17; null there.
+    private static Executor virtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static java.util.concurrent.ThreadFactory namedThreads(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> { Thread t = new Thread(r, prefix + n.incrementAndGet()); t.setDaemon(true); return t; };
+    }
+}
@@ -0,0 +1 @@
+public record ScheduledTest(int id, String title, String subject, int durationMinutes, int numQuestions, String scheduledDate, String scheduledTime, String status) {}
\ No newline at end of file
@@ -0,0 +1,153 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ordered schema migrations keyed on PRAGMA user_version. Each migration runs in its own
+ * transaction together with the version bump, so a failed migration leaves the database at the
+ * previous version. Add new steps at the end of MIGRATIONS; never edit one that has shipped.
+ */
+class SchemaMigrations {
+
+    interface Step { void apply(Statement stmt) throws SQLException; }
+
+    record Migration(int version, String description, Step step) {}
+
+    static final List<Migration> MIGRATIONS = List.of(
+        new Migration(1, "baseline tables", stmt -> {
+            stmt.execute("CREATE TABLE IF NOT EXISTS users (username TEXT PRIMARY KEY, password TEXT, role TEXT, full_name TEXT, avatar TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS quiz_performance (id INTEGER PRIMARY KEY AUTOINCREMENT, student_username TEXT, topic TEXT, score INTEGER, total INTEGER, quiz_date TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS feedback (id INTEGER PRIMARY KEY AUTOINCREMENT, teacher_username TEXT, message TEXT, date TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS questions (id INTEGER PRIMARY KEY AUTOINCREMENT, topic TEXT, question TEXT, opt0 TEXT, opt1 TEXT, opt2 TEXT, opt3 TEXT, correct_index INTEGER, explanation TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS experiments (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, description TEXT, filename TEXT, category TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS lectures (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, summary TEXT, video_url TEXT, category TEXT, teacher_username TEXT, upload_date TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS materials (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, description TEXT, file_path TEXT, file_type TEXT, file_size TEXT, category TEXT, teacher_username TEXT, upload_date TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS student_feedback (id INTEGER PRIMARY KEY AUTOINCREMENT, student_username TEXT, student_name TEXT, subject TEXT, message TEXT, feedback_date TEXT, is_read INTEGER DEFAULT 0)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS test_questions (id INTEGER PRIMARY KEY AUTOINCREMENT, subject TEXT, question TEXT, opt0 TEXT, opt1 TEXT, opt2 TEXT, opt3 TEXT, correct_index INTEGER, created_by TEXT, created_date TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS scheduled_tests (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, subject TEXT, duration_minutes INTEGER, num_questions INTEGER, scheduled_date TEXT, scheduled_time TEXT, status TEXT DEFAULT 'scheduled', created_by TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS test_results (id INTEGER PRIMARY KEY AUTOINCREMENT, test_id INTEGER, student_username TEXT, student_name TEXT, score INTEGER, total INTEGER, start_time TEXT, end_time TEXT, video_path TEXT, time_taken TEXT, status TEXT)");
+            // databases created before time_taken existed
+            if (!hasColumn(stmt, "test_results", "time_taken")) stmt.execute("ALTER TABLE test_results ADD COLUMN time_taken TEXT");
+        }),
+        new Migration(2, "session revocation tables", stmt -> {
+            stmt.execute("CREATE TABLE IF NOT EXISTS revoked_sessions (token_id TEXT PRIMARY KEY, expires_at INTEGER)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS revoked_users (username TEXT PRIMARY KEY, revoked_at INTEGER)");
+        }),
+        new Migration(3, "indexes for hot queries", stmt -> {
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_quiz_performance_student ON quiz_performance (student_username)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_questions_topic ON questions (topic)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_test_questions_subject ON test_questions (subject)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_test_results_taken ON test_results (test_id, student_username, status)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_test_results_student ON test_results (student_username, status, end_time)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_scheduled_tests_status ON scheduled_tests (status, scheduled_date, scheduled_time)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_users_role ON users (role)");
+            stmt.execute("ANALYZE");
+        }),
+        new Migration(4, "indexes for paginated teacher lists", stmt -> {
+            // rowid (id) trails every index, so each filter combination can walk id or (end_time, id) in order
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_quiz_performance_topic ON quiz_performance (topic)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_quiz_performance_student_topic ON quiz_performance (student_username, topic)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_test_results_completed ON test_results (status, end_time)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_test_results_test ON test_results (test_id, status, end_time)");
+            stmt.execute("ANALYZE");
+        }),
+        new Migration(5, "score aggregates", stmt -> {
+            ScoreAggregates.createTables(stmt);
+            ScoreAggregates.rebuild(stmt.getConnection());
+        }),
+        new Migration(6, "per-question responses", stmt -> {
+            stmt.execute("CREATE TABLE IF NOT EXISTS answer_responses (kind INTEGER NOT NULL, question_id INTEGER NOT NULL, result_id INTEGER NOT NULL, chosen INTEGER NOT NULL, " +
+                         "PRIMARY KEY (kind, question_id, result_id)) WITHOUT ROWID");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_answer_responses_result ON answer_responses (kind, result_id)");
+        }),
+        new Migration(7, "avatars moved to files", stmt -> {
+            // now done by postMigrate: it writes files, which rolling this transaction back would not undo
+        }),
+        new Migration(8, "frozen question pools", stmt -> {
+            // packed question ids, filled when a test is scheduled or, for older tests, on first fetch
+            stmt.execute("ALTER TABLE scheduled_tests ADD COLUMN question_pool BLOB");
+        }),
+        new Migration(9, "one attempt per student and test", stmt -> {
+            // keep the latest completed attempt, or the latest attempt if none completed; double starts made the rest
+            String loser = "SELECT id FROM test_results t WHERE id != (SELECT k.id FROM test_results k WHERE k.test_id IS t.test_id AND k.student_username IS t.student_username " +
+                           "ORDER BY k.status = 'completed' DESC, k.id DESC LIMIT 1)";
+            stmt.execute("DELETE FROM answer_responses WHERE kind = 1 AND result_id IN (" + loser + ")");
+            int removed = stmt.executeUpdate("DELETE FROM test_results WHERE id IN (" + loser + ")");
+            if (removed > 0) System.out.println("Removed " + removed + " duplicate test attempts");
+            stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_test_results_attempt ON test_results (test_id, student_username)");
+            // the unique index answers everything the old (test_id, student_username, status) one did
+            stmt.execute("DROP INDEX IF EXISTS idx_test_results_taken");
+        }),
+        new Migration(10, "quiz date index", stmt -> {
+            // date-only pages of quiz attempts seek the range instead of walking every id
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_quiz_performance_date ON quiz_performance (quiz_date)");
+            stmt.execute("ANALYZE");
+        })
+    );
+
+    /**
+     * Steps that write files as well as rows, run after migrate() outside any versioned
+     * transaction. Each is idempotent, so it runs at every startup and finds nothing to do once
+     * done: avatars are named by content hash, and a row is only rewritten after its files exist.
+     */
+    static void postMigrate(Connection conn) throws SQLException {
+        int moved = AvatarStore.migrateInline(conn, AvatarStore.fromSystemProperties());
+        if (moved > 0) System.out.println("Moved " + moved + " inline avatars to the avatar store");
+    }
+
+    /** Brings the database up to the latest version; returns the version it ended at. */
+    static int migrate(Connection conn) throws SQLException {
+        int current = userVersion(conn);
+        for (Migration m : MIGRATIONS) {
+            if (m.version() <= current) continue;
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                m.step().apply(stmt);
+                stmt.execute("PRAGMA user_version = " + m.version());
+                conn.commit();
+                System.out.println("Schema migrated to version " + m.version() + " (" + m.description() + ")");
+            } catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Migration " + m.version() + " (" + m.description() + ") failed", e);
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+            current = m.version();
+        }
+        return current;
+    }
+
+    /**
+     * Fails startup if a hot query would scan a whole table: a plan step "SCAN t" with no "USING".
+     * "SCAN t USING [COVERING] INDEX i" walks an index in order, which is a good plan for a sorted,
+     * limited page, and is allowed. Queries are keyed by a name for the message; parameters are
+     * left unbound, which EXPLAIN QUERY PLAN accepts.
+     */
+    static void verifyQueryPlans(Connection conn, Map<String, String> hotQueries) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        for (Map.Entry<String, String> q : hotQueries.entrySet()) {
+            try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + q.getValue()); ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String detail = rs.getString("detail");
+                    if (detail.startsWith("SCAN ") && !detail.contains(" USING ")) problems.add(q.getKey() + ": " + detail);
+                }
+            }
+        }
+        if (!problems.isEmpty()) throw new IllegalStateException("Hot queries without a usable index:\n  " + String.join("\n  ", problems));
+    }
+
+    private static int userVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static boolean hasColumn(Statement stmt, String table, String column) throws SQLException {
+        try (Statement info = stmt.getConnection().createStatement(); ResultSet rs = info.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) if (column.equalsIgnoreCase(rs.getString("name"))) return true;
+        }
+        return false;
+    }
+}
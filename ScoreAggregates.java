@@ -0,0 +1,145 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Running quiz statistics per (student, topic) in score_aggregates and per topic across the
+ * class in topic_aggregates: attempt count, sums, best and worst percentage, and the last
+ * WINDOW percentages. Each quiz result is folded in by the transaction that inserts it, so
+ * reading a dashboard costs one row per topic instead of the student's whole history.
+ * rebuild() recomputes both tables from quiz_performance in a single pass.
+ */
+class ScoreAggregates {
+
+    static final int WINDOW = 10;
+
+    /** One aggregate row; recent holds whole percentages, oldest first. */
+    record Aggregate(String topic, int attempts, long scoreSum, long totalSum, double pctSum, double minPct, double maxPct, byte[] recent) {
+
+        static Aggregate empty(String topic) { return new Aggregate(topic, 0, 0, 0, 0, 100, 0, new byte[0]); }
+
+        Aggregate plus(int score, int total) {
+            double pct = total > 0 ? 100.0 * score / total : 0;
+            byte[] window = Arrays.copyOfRange(recent, recent.length < WINDOW ? 0 : 1, recent.length < WINDOW ? recent.length + 1 : WINDOW + 1);
+            window[window.length - 1] = (byte) Math.round(pct);
+            return new Aggregate(topic, attempts + 1, scoreSum + score, totalSum + total, pctSum + pct,
+                                 Math.min(minPct, pct), Math.max(maxPct, pct), window);
+        }
+
+        double average() { return attempts == 0 ? 0 : pctSum / attempts; }
+
+        double recentAverage() {
+            if (recent.length == 0) return 0;
+            int sum = 0;
+            for (byte b : recent) sum += b;
+            return (double) sum / recent.length;
+        }
+    }
+
+    static void createTables(Statement stmt) throws SQLException {
+        String columns = "topic TEXT NOT NULL, attempts INTEGER, score_sum INTEGER, total_sum INTEGER, pct_sum REAL, min_pct REAL, max_pct REAL, recent BLOB";
+        stmt.execute("CREATE TABLE IF NOT EXISTS score_aggregates (student_username TEXT NOT NULL, " + columns + ", PRIMARY KEY (student_username, topic)) WITHOUT ROWID");
+        stmt.execute("CREATE TABLE IF NOT EXISTS topic_aggregates (" + columns + ", PRIMARY KEY (topic)) WITHOUT ROWID");
+    }
+
+    /** Folds one quiz result into both tables; call inside the transaction that inserts it. */
+    static void record(Connection conn, String student, String topic, int score, int total) throws SQLException {
+        save(conn, student, load(conn, student, topic).plus(score, total));
+        save(conn, null, load(conn, null, topic).plus(score, total));
+    }
+
+    /** A student's rows, one per topic they have attempted. */
+    static List<Aggregate> forStudent(Connection conn, String student) throws SQLException {
+        List<Aggregate> list = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM score_aggregates WHERE student_username = ? ORDER BY topic")) {
+            stmt.setString(1, student);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) list.add(read(rs));
+        }
+        return list;
+    }
+
+    /** Class-wide rows keyed by topic. */
+    static Map<String, Aggregate> allTopics(Connection conn) throws SQLException {
+        Map<String, Aggregate> map = new LinkedHashMap<>();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT * FROM topic_aggregates ORDER BY topic")) {
+            while (rs.next()) { Aggregate a = read(rs); map.put(a.topic(), a); }
+        }
+        return map;
+    }
+
+    /** Drops a student's rows and recomputes the class rows of the topics they had attempted. */
+    static void removeStudent(Connection conn, String student) throws SQLException {
+        Set<String> topics = new HashSet<>();
+        for (Aggregate a : forStudent(conn, student)) topics.add(a.topic());
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM score_aggregates WHERE student_username = ?")) { stmt.setString(1, student); stmt.executeUpdate(); }
+        for (String topic : topics) {
+            Aggregate a = Aggregate.empty(topic);
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT score, total FROM quiz_performance WHERE topic = ? ORDER BY id")) {
+                stmt.setString(1, topic);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) a = a.plus(rs.getInt("score"), rs.getInt("total"));
+            }
+            if (a.attempts() > 0) save(conn, null, a);
+            else try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM topic_aggregates WHERE topic = ?")) { stmt.setString(1, topic); stmt.executeUpdate(); }
+        }
+    }
+
+    /** Recomputes both tables from quiz_performance in one ordered pass. */
+    static int rebuild(Connection conn) throws SQLException {
+        Map<String, Map<String, Aggregate>> byStudent = new LinkedHashMap<>();
+        Map<String, Aggregate> byTopic = new LinkedHashMap<>();
+        int rows = 0;
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT student_username, topic, score, total FROM quiz_performance ORDER BY id")) {
+            while (rs.next()) {
+                String student = rs.getString(1), topic = rs.getString(2);
+                if (student == null || topic == null) continue;
+                int score = rs.getInt(3), total = rs.getInt(4);
+                byStudent.computeIfAbsent(student, s -> new LinkedHashMap<>()).merge(topic, Aggregate.empty(topic).plus(score, total), (a, b) -> a.plus(score, total));
+                byTopic.merge(topic, Aggregate.empty(topic).plus(score, total), (a, b) -> a.plus(score, total));
+                rows++;
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM score_aggregates");
+            stmt.execute("DELETE FROM topic_aggregates");
+        }
+        for (Map.Entry<String, Map<String, Aggregate>> e : byStudent.entrySet()) for (Aggregate a : e.getValue().values()) save(conn, e.getKey(), a);
+        for (Aggregate a : byTopic.values()) save(conn, null, a);
+        return rows;
+    }
+
+    // student null means the class-wide row
+    private static Aggregate load(Connection conn, String student, String topic) throws SQLException {
+        String sql = student == null ? "SELECT * FROM topic_aggregates WHERE topic = ?" : "SELECT * FROM score_aggregates WHERE topic = ? AND student_username = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, topic);
+            if (student != null) stmt.setString(2, student);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? read(rs) : Aggregate.empty(topic);
+        }
+    }
+
+    private static void save(Connection conn, String student, Aggregate a) throws SQLException {
+        String sql = student == null
+            ? "INSERT OR REPLACE INTO topic_aggregates (topic, attempts, score_sum, total_sum, pct_sum, min_pct, max_pct, recent) VALUES (?, ?, ?, ?, ?, ?, ?, ?)"
+            : "INSERT OR REPLACE INTO score_aggregates (topic, attempts, score_sum, total_sum, pct_sum, min_pct, max_pct, recent, student_username) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, a.topic()); stmt.setInt(2, a.attempts()); stmt.setLong(3, a.scoreSum()); stmt.setLong(4, a.totalSum());
+            stmt.setDouble(5, a.pctSum()); stmt.setDouble(6, a.minPct()); stmt.setDouble(7, a.maxPct()); stmt.setBytes(8, a.recent());
+            if (student != null) stmt.setString(9, student);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static Aggregate read(ResultSet rs) throws SQLException {
+        byte[] recent = rs.getBytes("recent");
+        return new Aggregate(rs.getString("topic"), rs.getInt("attempts"), rs.getLong("score_sum"), rs.getLong("total_sum"), rs.getDouble("pct_sum"),
+                             rs.getDouble("min_pct"), rs.getDouble("max_pct"), recent == null ? new byte[0] : recent);
+    }
+}
@@ -0,0 +1,285 @@
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class-wide score statistics over quiz_performance and completed test_results. Both tables are
+ * mirrored in memory as primitive columns (student and group dictionary codes, score, total,
+ * epoch millis) that only grow: a refresh appends rows past a watermark when TableVersions says
+ * the table changed. A query is one fork-join scan over the columns that builds per-group
+ * percentage histograms, sums and trend buckets; percentiles are read off the histograms.
+ */
+class ScoreAnalytics {
+
+    enum Source { QUIZ, TEST }
+
+    /** GROUP is the topic for quizzes and the scheduled test for tests. */
+    enum Dimension { GROUP, STUDENT }
+
+    /** Percentages are 0-100. trend holds one bucket per day of the requested window, oldest first. */
+    record GroupStats(String key, int count, double mean, int min, int p25, int median, int p75, int p90, int max,
+                      int[] histogram, double slopePerWeek, long firstTrendDay, double[] trendMeans, int[] trendCounts) {}
+
+    private static final long DAY_MILLIS = 86_400_000L;
+
+    private final ConnectionPool pool;
+    private final TableVersions versions;
+    private final Table quiz = new Table("quiz_performance");
+    private final Table tests = new Table("test_results", "scheduled_tests");
+    private final LongAdder refreshes = ServerMetrics.counter("analytics.refreshes");
+    private final LongAdder queries = ServerMetrics.counter("analytics.queries");
+
+    ScoreAnalytics(ConnectionPool pool, TableVersions versions) {
+        this.pool = pool;
+        this.versions = versions;
+        ServerMetrics.gauge("analytics.quiz.rows", () -> quiz.view.size());
+        ServerMetrics.gauge("analytics.test.rows", () -> tests.view.size());
+    }
+
+    /** Forces a full reload on the next query; appends alone cannot see deleted rows. */
+    void invalidate() {
+        quiz.stale = true;
+        tests.stale = true;
+    }
+
+    List<GroupStats> groupBy(Source source, Dimension dimension, int trendDays) throws SQLException {
+        queries.increment();
+        View v = view(source == Source.QUIZ ? quiz : tests, source);
+        String[] names = dimension == Dimension.STUDENT ? v.students() : v.groups();
+        int[] keys = dimension == Dimension.STUDENT ? v.student() : v.group();
+        long today = Math.floorDiv(System.currentTimeMillis() + offsetMillis(), DAY_MILLIS);
+        long firstDay = today - Math.max(0, trendDays) + 1;
+        int threshold = Math.max(2048, v.size() / (ForkJoinPool.getCommonPoolParallelism() * 4 + 1));
+        Partial p = ForkJoinPool.commonPool().invoke(new Scan(v, keys, names.length, firstDay, Math.max(0, trendDays), 0, v.size(), threshold));
+
+        List<GroupStats> out = new ArrayList<>();
+        for (int g = 0; g < names.length; g++) {
+            if (p.count[g] == 0) continue;
+            int[] hist = p.pct[g];
+            int[] bins = new int[10];
+            for (int pct = 0; pct <= 100; pct++) bins[Math.min(9, pct / 10)] += hist[pct];
+            double n = p.sn[g];
+            double denom = n * p.sxx[g] - p.sx[g] * p.sx[g];
+            double slope = denom == 0 ? 0 : (n * p.sxy[g] - p.sx[g] * p.sy[g]) / denom;
+            double[] means = new double[p.dayCount == null ? 0 : trendDays];
+            int[] counts = p.dayCount == null || p.dayCount[g] == null ? new int[means.length] : p.dayCount[g];
+            for (int d = 0; d < means.length; d++) means[d] = counts[d] == 0 ? Double.NaN : p.daySum[g][d] / counts[d];
+            out.add(new GroupStats(names[g], p.count[g], p.sum[g] / p.count[g], percentile(hist, p.count[g], 0), percentile(hist, p.count[g], 0.25),
+                                   percentile(hist, p.count[g], 0.5), percentile(hist, p.count[g], 0.75), percentile(hist, p.count[g], 0.9),
+                                   percentile(hist, p.count[g], 1), bins, slope * 7, firstDay, means, counts));
+        }
+        return out;
+    }
+
+    // nearest-rank percentile over a whole-percent histogram
+    private static int percentile(int[] hist, int count, double q) {
+        long rank = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int pct = 0; pct < hist.length; pct++) {
+            seen += hist[pct];
+            if (seen >= rank) return pct;
+        }
+        return 100;
+    }
+
+    // --- columns ---
+
+    /** An immutable window onto the columns: rows [0, size) of these arrays never change. */
+    private record View(int[] student, int[] group, int[] score, int[] total, long[] time, int size, String[] students, String[] groups) {}
+
+    private static final class Table {
+        final String[] tables;
+        volatile View view = new View(new int[0], new int[0], new int[0], new int[0], new long[0], 0, new String[0], new String[0]);
+        volatile boolean stale = true;
+        volatile long stamp = -1;
+        int[] student, group, score, total;
+        long[] time;
+        int size;
+        final Map<String, Integer> studentCodes = new HashMap<>(), groupCodes = new HashMap<>();
+        final List<String> students = new ArrayList<>(), groups = new ArrayList<>();
+        long nextId;           // first id not yet looked at
+        final BitSet loaded = new BitSet(); // test results are appended on completion, not insertion
+
+        Table(String... tables) { this.tables = tables; }
+
+        void reset() {
+            student = new int[1024]; group = new int[1024]; score = new int[1024]; total = new int[1024]; time = new long[1024];
+            size = 0;
+            studentCodes.clear(); groupCodes.clear(); students.clear(); groups.clear();
+            nextId = 0;
+            loaded.clear();
+        }
+
+        void add(String studentName, String groupName, int s, int t, long millis) {
+            if (size == score.length) {
+                int n = size * 2;
+                student = Arrays.copyOf(student, n); group = Arrays.copyOf(group, n);
+                score = Arrays.copyOf(score, n); total = Arrays.copyOf(total, n); time = Arrays.copyOf(time, n);
+            }
+            student[size] = code(studentCodes, students, studentName);
+            group[size] = code(groupCodes, groups, groupName);
+            score[size] = s; total[size] = t; time[size] = millis;
+            size++;
+        }
+
+        void setLabel(String groupName, String label) {
+            Integer code = groupCodes.get(groupName);
+            if (code != null) groups.set(code, label);
+        }
+
+        void publish() { view = new View(student, group, score, total, time, size, students.toArray(new String[0]), groups.toArray(new String[0])); }
+
+        private static int code(Map<String, Integer> codes, List<String> names, String name) {
+            return codes.computeIfAbsent(name == null ? "" : name, k -> { names.add(k); return names.size() - 1; });
+        }
+    }
+
+    private View view(Table t, Source source) throws SQLException {
+        long stamp = versions.version(t.tables);
+        if (stamp == t.stamp && !t.stale) return t.view;
+        synchronized (t) {
+            stamp = versions.version(t.tables);
+            if (stamp == t.stamp && !t.stale) return t.view;
+            if (t.stale) { t.reset(); t.stale = false; }
+            try (Connection conn = pool.reader()) {
+                if (source == Source.QUIZ) appendQuiz(t, conn); else appendTests(t, conn);
+            }
+            t.stamp = stamp;
+            t.publish();
+            refreshes.increment();
+            return t.view;
+        }
+    }
+
+    private static void appendQuiz(Table t, Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id, student_username, topic, score, total, quiz_date FROM quiz_performance WHERE id >= ? ORDER BY id")) {
+            stmt.setLong(1, t.nextId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                t.add(rs.getString(2), rs.getString(3), rs.getInt(4), rs.getInt(5), epochMillis(rs.getString(6)));
+                t.nextId = rs.getLong(1) + 1;
+            }
+        }
+    }
+
+    // Rows are inserted in_progress and completed later, so the scan restarts at the oldest unfinished row.
+    private static void appendTests(Table t, Connection conn) throws SQLException {
+        long firstPending = -1, last = t.nextId - 1;
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id, test_id, student_username, score, total, end_time, status FROM test_results WHERE id >= ? ORDER BY id")) {
+            stmt.setLong(1, t.nextId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                last = id;
+                if (id <= Integer.MAX_VALUE && t.loaded.get((int) id)) continue;
+                if ("completed".equals(rs.getString(7))) {
+                    t.add(rs.getString(3), String.valueOf(rs.getInt(2)), rs.getInt(4), rs.getInt(5), epochMillis(rs.getString(6)));
+                    if (id <= Integer.MAX_VALUE) t.loaded.set((int) id);
+                } else if (firstPending < 0) firstPending = id;
+            }
+        }
+        t.nextId = firstPending >= 0 ? firstPending : last + 1;
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT id, title FROM scheduled_tests")) {
+            while (rs.next()) t.setLabel(String.valueOf(rs.getInt(1)), rs.getString(2));
+        }
+    }
+
+    private static long epochMillis(String isoDateTime) {
+        if (isoDateTime == null) return 0;
+        try { return LocalDateTime.parse(isoDateTime).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(); }
+        catch (RuntimeException e) { return 0; }
+    }
+
+    private static long offsetMillis() { return ZoneId.systemDefault().getRules().getOffset(java.time.Instant.now()).getTotalSeconds() * 1000L; }
+
+    static String day(long epochDay) { return LocalDate.ofEpochDay(epochDay).toString(); }
+
+    // --- the scan ---
+
+    /** Per-group partial results of one slice of rows; arrays for a group are allocated on first use. */
+    private static final class Partial {
+        final int[][] pct;
+        final int[] count;
+        final double[] sum, sn, sx, sy, sxy, sxx; // sn..sxx: least squares of percentage over day, rows with a timestamp only
+        final double[][] daySum;
+        final int[][] dayCount;
+
+        Partial(int groups, int days) {
+            pct = new int[groups][];
+            count = new int[groups];
+            sum = new double[groups]; sn = new double[groups]; sx = new double[groups]; sy = new double[groups]; sxy = new double[groups]; sxx = new double[groups];
+            daySum = days > 0 ? new double[groups][] : null;
+            dayCount = days > 0 ? new int[groups][] : null;
+        }
+
+        Partial merge(Partial o) {
+            for (int g = 0; g < count.length; g++) {
+                if (o.count[g] == 0) continue;
+                if (pct[g] == null) pct[g] = o.pct[g];
+                else for (int i = 0; i <= 100; i++) pct[g][i] += o.pct[g][i];
+                count[g] += o.count[g]; sum[g] += o.sum[g];
+                sn[g] += o.sn[g]; sx[g] += o.sx[g]; sy[g] += o.sy[g]; sxy[g] += o.sxy[g]; sxx[g] += o.sxx[g];
+                if (dayCount != null && o.dayCount[g] != null) {
+                    if (dayCount[g] == null) { dayCount[g] = o.dayCount[g]; daySum[g] = o.daySum[g]; }
+                    else for (int d = 0; d < dayCount[g].length; d++) { dayCount[g][d] += o.dayCount[g][d]; daySum[g][d] += o.daySum[g][d]; }
+                }
+            }
+            return this;
+        }
+    }
+
+    private static final class Scan extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        final View v;
+        final int[] keys;
+        final int groups, days, lo, hi, threshold;
+        final long firstDay;
+
+        Scan(View v, int[] keys, int groups, long firstDay, int days, int lo, int hi, int threshold) {
+            this.v = v; this.keys = keys; this.groups = groups; this.firstDay = firstDay; this.days = days;
+            this.lo = lo; this.hi = hi; this.threshold = threshold;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (hi - lo > threshold) {
+                int mid = (lo + hi) >>> 1;
+                Scan left = new Scan(v, keys, groups, firstDay, days, lo, mid, threshold);
+                left.fork();
+                Partial right = new Scan(v, keys, groups, firstDay, days, mid, hi, threshold).compute();
+                return left.join().merge(right);
+            }
+            Partial p = new Partial(groups, days);
+            long offset = offsetMillis();
+            for (int i = lo; i < hi; i++) {
+                int g = keys[i];
+                double pct = v.total()[i] > 0 ? 100.0 * v.score()[i] / v.total()[i] : 0;
+                if (p.pct[g] == null) p.pct[g] = new int[101];
+                p.pct[g][(int) Math.max(0, Math.min(100, Math.round(pct)))]++;
+                p.count[g]++;
+                p.sum[g] += pct;
+                long millis = v.time()[i];
+                if (millis == 0) continue;
+                long day = Math.floorDiv(millis + offset, DAY_MILLIS);
+                double x = day - firstDay; // days relative to the window keep the sums well conditioned
+                p.sn[g]++; p.sx[g] += x; p.sy[g] += pct; p.sxy[g] += x * pct; p.sxx[g] += x * x;
+                if (days > 0 && day >= firstDay && day < firstDay + days) {
+                    if (p.dayCount[g] == null) { p.dayCount[g] = new int[days]; p.daySum[g] = new double[days]; }
+                    p.dayCount[g][(int) (day - firstDay)]++;
+                    p.daySum[g][(int) (day - firstDay)] += pct;
+                }
+            }
+            return p;
+        }
+    }
+}
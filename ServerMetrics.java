@@ -0,0 +1,46 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of named counters and gauges, served as JSON at /api/admin/metrics.
+ */
+public class ServerMetrics {
+
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** Drops every counter and gauge whose name starts with prefix, e.g. a deleted test's "exams.7.". */
+    public static void remove(String prefix) {
+        counters.keySet().removeIf(k -> k.startsWith(prefix));
+        gauges.keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            if (!first) json.append(",");
+            first = false;
+            json.append("\"").append(e.getKey()).append("\":").append(e.getValue().sum());
+        }
+        json.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            if (!first) json.append(",");
+            first = false;
+            json.append("\"").append(e.getKey()).append("\":").append(e.getValue().getAsLong());
+        }
+        json.append("}}");
+        return json.toString();
+    }
+}
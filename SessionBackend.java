@@ -0,0 +1,33 @@
+/**
+ * Where login sessions live. The default SessionStore keeps them in this process; the
+ * stateless SignedSessionTokens mode carries them in an HMAC-signed cookie so several server
+ * processes can sit behind one load balancer.
+ *
+ * Select with -Dvlab.session.mode=memory|stateless
+ */
+public interface SessionBackend {
+
+    /** Registers a new session and returns the cookie token for it. */
+    String create(UserSession session);
+
+    /** Session for a cookie token, or null if unknown, expired or revoked. */
+    UserSession get(String token);
+
+    /** Logs one token out. */
+    void remove(String token);
+
+    /** Logs out every session of a user, e.g. after the account is deleted. */
+    void removeUser(String username);
+
+    /**
+     * Called after a handler changed session state (the running quiz). Returns a replacement
+     * cookie token when the state travels inside the token, or null if nothing needs resending.
+     */
+    default String reissue(String token, UserSession session) { return null; }
+
+    static SessionBackend fromSystemProperties(DatabaseManager db) {
+        String mode = System.getProperty("vlab.session.mode", "memory");
+        if (mode.equalsIgnoreCase("stateless")) return SignedSessionTokens.fromSystemProperties(db);
+        return SessionStore.fromSystemProperties();
+    }
+}
@@ -0,0 +1,94 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves the login session once per request. The Cookie header is scanned by hand for the
+ * token, the UserSession is looked up and stored as an exchange attribute, and the context's
+ * access rule is enforced before the handler runs. Handlers read the session back with
+ * {@link #session(HttpExchange)} instead of parsing cookies again.
+ */
+public class SessionFilter extends Filter {
+
+    public static final String SESSION_ATTRIBUTE = "vlab.session";
+    public static final String TOKEN_ATTRIBUTE = "vlab.session.token";
+    private static final String COOKIE_NAME = "token";
+
+    /** Who may enter a context: anyone, any logged-in user, or only the listed roles. */
+    public static final class Access {
+        public static final Access PUBLIC = new Access(false, Set.of());
+        public static final Access AUTHENTICATED = new Access(true, Set.of());
+
+        private final boolean login;
+        private final Set<String> roles;
+
+        private Access(boolean login, Set<String> roles) { this.login = login; this.roles = roles; }
+
+        public static Access roles(String... roles) { return new Access(true, Set.of(roles)); }
+
+        boolean allows(UserSession s) {
+            if (!login) return true;
+            return s != null && (roles.isEmpty() || roles.contains(s.role));
+        }
+    }
+
+    private static final LongAdder calls = ServerMetrics.counter("filter.session.calls");
+    private static final LongAdder micros = ServerMetrics.counter("filter.session.micros");
+    private static final LongAdder denied = ServerMetrics.counter("filter.session.denied");
+
+    private final SessionBackend store;
+    private final Access access;
+
+    public SessionFilter(SessionBackend store, Access access) {
+        this.store = store;
+        this.access = access;
+    }
+
+    public static UserSession session(HttpExchange ex) { return (UserSession) ex.getAttribute(SESSION_ATTRIBUTE); }
+
+    public static String token(HttpExchange ex) { return (String) ex.getAttribute(TOKEN_ATTRIBUTE); }
+
+    @Override
+    public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        String token = cookie(ex.getRequestHeaders().getFirst("Cookie"), COOKIE_NAME);
+        UserSession s = token == null ? null : store.get(token);
+        // exchange attributes live in a ConcurrentHashMap, so absent values are simply not set
+        if (token != null) ex.setAttribute(TOKEN_ATTRIBUTE, token);
+        if (s != null) ex.setAttribute(SESSION_ATTRIBUTE, s);
+        boolean allowed = access.allows(s);
+        calls.increment();
+        micros.add((System.nanoTime() - start) / 1000);
+        if (!allowed) {
+            denied.increment();
+            ex.getResponseHeaders().set("Location", "/login");
+            ex.sendResponseHeaders(302, -1);
+            ex.close();
+            return;
+        }
+        chain.doFilter(ex);
+    }
+
+    /** Value of the named cookie in a Cookie header ("a=1; b=2"), or null. */
+    static String cookie(String header, String name) {
+        if (header == null) return null;
+        int n = header.length(), i = 0;
+        while (i < n) {
+            while (i < n && (header.charAt(i) == ' ' || header.charAt(i) == ';')) i++;
+            int end = header.indexOf(';', i);
+            if (end < 0) end = n;
+            int eq = header.indexOf('=', i);
+            if (eq > i && eq < end && eq - i == name.length() && header.regionMatches(i, name, 0, name.length())) {
+                String value = header.substring(eq + 1, end).trim();
+                return value.isEmpty() ? null : value;
+            }
+            i = end + 1;
+        }
+        return null;
+    }
+
+    @Override
+    public String description() { return "session resolution (" + (access.login ? "login" : "public") + ")"; }
+}
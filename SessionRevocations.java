@@ -0,0 +1,111 @@
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Revoked stateless sessions. Revocations are written to SQLite so every process sees them;
+ * each process keeps a Bloom filter of the revoked token ids and usernames, rebuilt from the
+ * table every few seconds. Most requests are cleared by the filter alone; only a filter hit
+ * costs an exact lookup in the database.
+ */
+public class SessionRevocations {
+
+    private final DatabaseManager db;
+    private final long tokenLifetimeMillis;
+    private final long refreshMillis;
+    private volatile Bloom bloom = new Bloom(1024);
+    private final LongAdder bloomHits = ServerMetrics.counter("sessions.revocation.bloom_hits");
+    private final LongAdder falsePositives = ServerMetrics.counter("sessions.revocation.false_positives");
+
+    public SessionRevocations(DatabaseManager db, long tokenLifetimeMillis, long refreshMillis) {
+        this.db = db;
+        this.tokenLifetimeMillis = tokenLifetimeMillis;
+        this.refreshMillis = refreshMillis;
+        ServerMetrics.gauge("sessions.revocation.entries", () -> bloom.entries);
+        refresh();
+    }
+
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try { Thread.sleep(refreshMillis); }
+                catch (InterruptedException e) { return; }
+                try { refresh(); } catch (RuntimeException e) { e.printStackTrace(); }
+            }
+        }, "session-revocations");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isRevoked(String tokenId, String username, long issuedAt) {
+        Bloom b = bloom;
+        if (!b.mightContain(tokenKey(tokenId)) && !b.mightContain(userKey(username))) return false;
+        bloomHits.increment();
+        boolean revoked = db.isSessionRevoked(tokenId, username, issuedAt);
+        if (!revoked) falsePositives.increment();
+        return revoked;
+    }
+
+    // Revokes and refresh() share the lock, so a refresh cannot read the table before a revoke's
+    // insert and then swap out the filter that revoke added to.
+    public synchronized void revokeToken(String tokenId, long expiresAt) {
+        db.revokeSessionToken(tokenId, expiresAt);
+        bloom.add(tokenKey(tokenId));
+    }
+
+    public synchronized void revokeUser(String username) {
+        db.revokeUserSessions(username, System.currentTimeMillis());
+        bloom.add(userKey(username));
+    }
+
+    /** Rebuilds the filter from the table; rows that can no longer match a live token are pruned first. */
+    synchronized void refresh() {
+        List<String> keys = db.getRevocationKeys(System.currentTimeMillis(), tokenLifetimeMillis);
+        Bloom next = new Bloom(Math.max(1024, keys.size() * 2));
+        for (String k : keys) next.add(k);
+        bloom = next;
+    }
+
+    private static String tokenKey(String id) { return "t:" + id; }
+    private static String userKey(String username) { return "u:" + username; }
+
+    /** Fixed-size Bloom filter, about 1% false positives at its expected size (10 bits per entry, 7 probes). */
+    private static class Bloom {
+        private static final int PROBES = 7;
+        private final long[] bits;
+        private final int size;
+        volatile int entries;
+
+        Bloom(int expected) {
+            this.size = Math.max(64, expected * 10);
+            this.bits = new long[(size + 63) / 64];
+        }
+
+        synchronized void add(String key) {
+            long h = hash(key);
+            int h1 = (int) h, h2 = (int) (h >>> 32);
+            for (int i = 0; i < PROBES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, size);
+                bits[bit >>> 6] |= 1L << bit;
+            }
+            entries++;
+        }
+
+        boolean mightContain(String key) {
+            long h = hash(key);
+            int h1 = (int) h, h2 = (int) (h >>> 32);
+            for (int i = 0; i < PROBES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, size);
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        // 64-bit FNV-1a with a final avalanche so both halves are usable as independent hashes
+        private static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) { h ^= key.charAt(i); h *= 0x100000001b3L; }
+            h ^= h >>> 33; h *= 0xff51afd7ed558ccdL; h ^= h >>> 33;
+            return h;
+        }
+    }
+}
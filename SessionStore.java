@@ -0,0 +1,114 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe login session store. Sessions expire after an idle timeout or an absolute
+ * lifetime, whichever comes first; expiry is driven by a TimingWheel instead of periodic scans.
+ * When the store is full the least recently used session is evicted.
+ *
+ * Tunables: -Dvlab.session.idleMinutes=30 -Dvlab.session.absoluteHours=12 -Dvlab.session.max=10000
+ */
+public class SessionStore implements SessionBackend {
+
+    private static class Entry {
+        final String token;
+        final UserSession session;
+        final long createdAt;
+        volatile long lastAccess;
+
+        Entry(String token, UserSession session, long now) { this.token = token; this.session = session; this.createdAt = now; this.lastAccess = now; }
+    }
+
+    private final long idleTtlMillis;
+    private final long absoluteTtlMillis;
+    private final int maxSessions;
+    private final LongAdder expired = ServerMetrics.counter("sessions.expired");
+    private final LongAdder evicted = ServerMetrics.counter("sessions.evicted");
+    // holds the entries themselves, so checking one never touches the access order below
+    private final TimingWheel<Entry> expiry = new TimingWheel<>("session-expiry", 1000, 64, this::onDeadline);
+
+    // access-ordered, so iteration starts at the least recently used session
+    private final LinkedHashMap<String, Entry> sessions = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= maxSessions) return false;
+            evicted.increment();
+            return true;
+        }
+    };
+
+    public SessionStore(long idleTtlMillis, long absoluteTtlMillis, int maxSessions) {
+        this.idleTtlMillis = idleTtlMillis;
+        this.absoluteTtlMillis = absoluteTtlMillis;
+        this.maxSessions = maxSessions;
+        ServerMetrics.gauge("sessions.live", this::size);
+        expiry.start();
+    }
+
+    public static SessionStore fromSystemProperties() {
+        return new SessionStore(Integer.getInteger("vlab.session.idleMinutes", 30) * 60_000L,
+                                Integer.getInteger("vlab.session.absoluteHours", 12) * 3_600_000L,
+                                Integer.getInteger("vlab.session.max", 10_000));
+    }
+
+    @Override
+    public String create(UserSession session) {
+        String token = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+        Entry e = new Entry(token, session, now);
+        synchronized (sessions) { sessions.put(token, e); }
+        expiry.schedule(e, deadline(e));
+        return token;
+    }
+
+    @Override
+    public UserSession get(String token) {
+        if (token == null) return null;
+        Entry e;
+        synchronized (sessions) { e = sessions.get(token); }
+        if (e == null) return null;
+        long now = System.currentTimeMillis();
+        if (now >= deadline(e)) { expire(e); return null; }
+        e.lastAccess = now;
+        return e.session;
+    }
+
+    @Override
+    public void remove(String token) {
+        if (token == null) return;
+        synchronized (sessions) { sessions.remove(token); }
+    }
+
+    @Override
+    public void removeUser(String username) {
+        synchronized (sessions) { sessions.values().removeIf(e -> e.session.username.equals(username)); }
+    }
+
+    public int size() {
+        synchronized (sessions) { return sessions.size(); }
+    }
+
+    private long deadline(Entry e) {
+        return Math.min(e.createdAt + absoluteTtlMillis, e.lastAccess + idleTtlMillis);
+    }
+
+    // Runs on the wheel thread. A session touched since it was scheduled is pushed to its new
+    // deadline. containsKey, unlike get, leaves the LRU order alone.
+    private void onDeadline(Entry e) {
+        boolean live;
+        synchronized (sessions) { live = sessions.containsKey(e.token); }
+        if (!live) return;
+        long deadline = deadline(e);
+        if (System.currentTimeMillis() >= deadline) expire(e);
+        else expiry.schedule(e, deadline);
+    }
+
+    private void expire(Entry e) {
+        boolean removed;
+        synchronized (sessions) { removed = sessions.remove(e.token, e); }
+        if (removed) expired.increment();
+    }
+
+}
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless sessions: the cookie itself carries username, role, full name, expiry and the
+ * running quiz's question ids, signed with HMAC-SHA256. Claims are signed, not encrypted, so
+ * nothing a student must not read (such as the quiz's answers) goes in them. Any process holding the same secret can verify a token
+ * without shared memory, so the server can run as several processes behind a load balancer.
+ * Logouts and account deletions go through SessionRevocations.
+ *
+ * Token: base64url(claims) "." base64url(hmac(claims)).
+ * Secret: -Dvlab.session.secret=... or the file -Dvlab.session.secretFile=session.key, which is
+ * generated on first start; every process of a deployment must see the same one.
+ */
+public class SignedSessionTokens implements SessionBackend {
+
+    // version 1 tokens also carried the quiz's correct options; they are still accepted, minus those
+    private static final byte VERSION = 2;
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+
+    private record Claims(String id, String username, String role, String fullName, long issuedAt, long expiresAt, String quizTopic, int[] quizQuestionIds) {}
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final long lifetimeMillis;
+    private final SessionRevocations revocations;
+    private final SecureRandom random = new SecureRandom();
+
+    public SignedSessionTokens(byte[] secret, long lifetimeMillis, SessionRevocations revocations) {
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+        this.lifetimeMillis = lifetimeMillis;
+        this.revocations = revocations;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try { Mac mac = Mac.getInstance("HmacSHA256"); mac.init(key); return mac; }
+            catch (GeneralSecurityException e) { throw new IllegalStateException(e); }
+        });
+    }
+
+    public static SignedSessionTokens fromSystemProperties(DatabaseManager db) {
+        long lifetime = Integer.getInteger("vlab.session.absoluteHours", 12) * 3_600_000L;
+        SessionRevocations revocations = new SessionRevocations(db, lifetime, Integer.getInteger("vlab.session.revocationRefreshSeconds", 5) * 1000L);
+        revocations.start();
+        return new SignedSessionTokens(loadSecret(), lifetime, revocations);
+    }
+
+    @Override
+    public String create(UserSession s) {
+        long now = System.currentTimeMillis();
+        return sign(new Claims(newId(), s.username, s.role, s.fullName, now, now + lifetimeMillis, s.quizTopic, s.quizQuestionIds));
+    }
+
+    @Override
+    public UserSession get(String token) {
+        Claims c = verify(token);
+        if (c == null || revocations.isRevoked(c.id(), c.username(), c.issuedAt())) return null;
+        UserSession s = new UserSession(c.username(), c.role(), c.fullName());
+        s.quizTopic = c.quizTopic();
+        s.quizQuestionIds = c.quizQuestionIds();
+        return s;
+    }
+
+    @Override
+    public void remove(String token) {
+        Claims c = verify(token);
+        if (c != null) revocations.revokeToken(c.id(), c.expiresAt());
+    }
+
+    @Override
+    public void removeUser(String username) {
+        revocations.revokeUser(username);
+    }
+
+    /**
+     * Same id and expiry, updated quiz state. Nothing is revoked: the claims hold no answers, so
+     * an older copy of the token is only as good as the session itself and lapses with it.
+     */
+    @Override
+    public String reissue(String token, UserSession s) {
+        Claims c = verify(token);
+        if (c == null) return null;
+        return sign(new Claims(c.id(), c.username(), c.role(), c.fullName(), c.issuedAt(), c.expiresAt(), s.quizTopic, s.quizQuestionIds));
+    }
+
+    private String newId() {
+        byte[] id = new byte[12];
+        random.nextBytes(id);
+        return B64.encodeToString(id);
+    }
+
+    private String sign(Claims c) {
+        String body = B64.encodeToString(encode(c));
+        return body + "." + B64.encodeToString(macs.get().doFinal(body.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private Claims verify(String token) {
+        if (token == null) return null;
+        int dot = token.lastIndexOf('.');
+        if (dot <= 0) return null;
+        try {
+            String body = token.substring(0, dot);
+            byte[] expected = macs.get().doFinal(body.getBytes(StandardCharsets.US_ASCII));
+            if (!MessageDigest.isEqual(expected, B64D.decode(token.substring(dot + 1)))) return null;
+            Claims c = decode(B64D.decode(body));
+            return c != null && System.currentTimeMillis() < c.expiresAt() ? c : null;
+        } catch (IllegalArgumentException | IOException e) {
+            return null; // malformed token
+        }
+    }
+
+    private static byte[] encode(Claims c) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeUTF(c.id());
+            out.writeUTF(c.username());
+            out.writeUTF(c.role());
+            out.writeUTF(c.fullName() == null ? "" : c.fullName());
+            out.writeLong(c.issuedAt());
+            out.writeLong(c.expiresAt());
+            out.writeUTF(c.quizTopic() == null ? "" : c.quizTopic());
+            int[] ids = c.quizQuestionIds() == null ? new int[0] : c.quizQuestionIds();
+            out.writeByte(ids.length);
+            for (int id : ids) out.writeInt(id);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        return bytes.toByteArray();
+    }
+
+    private static Claims decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte version = in.readByte();
+        if (version != VERSION && version != 1) return null;
+        String id = in.readUTF(), username = in.readUTF(), role = in.readUTF(), fullName = in.readUTF();
+        long issuedAt = in.readLong(), expiresAt = in.readLong();
+        String topic = in.readUTF();
+        if (version == 1) in.skipNBytes(in.readUnsignedByte()); // the old answer key, never read back
+        int[] ids = new int[in.available() > 0 ? in.readUnsignedByte() : 0];
+        for (int i = 0; i < ids.length; i++) ids[i] = in.readInt();
+        return new Claims(id, username, role, fullName, issuedAt, expiresAt, topic.isEmpty() ? null : topic, ids.length == 0 ? null : ids);
+    }
+
+    private static byte[] loadSecret() {
+        String secret = System.getProperty("vlab.session.secret");
+        if (secret != null && !secret.isEmpty()) return secret.getBytes(StandardCharsets.UTF_8);
+        Path file = Paths.get(System.getProperty("vlab.session.secretFile", "session.key"));
+        try {
+            if (!Files.exists(file)) {
+                byte[] generated = new byte[32];
+                new SecureRandom().nextBytes(generated);
+                // written whole under a temporary name first, so no process ever reads a partial key;
+                // the link fails if another process got there first, and everyone then reads its key
+                Path dir = file.toAbsolutePath().getParent();
+                Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+                try {
+                    Files.write(tmp, generated);
+                    try { Files.createLink(file, tmp); }
+                    catch (UnsupportedOperationException e) { Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE); }
+                    System.out.println("Generated session signing key " + file.toAbsolutePath());
+                } catch (FileAlreadyExistsException e) { /* another process won the race, use its key */ }
+                finally { Files.deleteIfExists(tmp); }
+            }
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read session signing key " + file, e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache for the html/css pages. Each asset is read once and kept as raw and gzip
+ * byte arrays with a strong ETag; a watcher thread drops entries when the file changes on disk.
+ * Each change also bumps the file's version, and a miss only caches what it read if the version
+ * is still the one it saw before reading, so a load racing a change cannot re-cache old bytes.
+ */
+public class StaticAssetCache {
+
+    private record Asset(byte[] raw, byte[] gzip, String etag, String gzipEtag) {}
+
+    private final Path root;
+    private final ConcurrentHashMap<String, Asset> assets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+    private final LongAdder hits = ServerMetrics.counter("static.hits");
+    private final LongAdder misses = ServerMetrics.counter("static.misses");
+    private final LongAdder notModified = ServerMetrics.counter("static.not_modified");
+
+    public StaticAssetCache(Path root) {
+        this.root = root;
+        ServerMetrics.gauge("static.cached_assets", assets::size);
+    }
+
+    public void serve(HttpExchange ex, String file, String type) throws IOException {
+        Asset asset = assets.get(file);
+        if (asset != null) hits.increment();
+        else {
+            misses.increment();
+            long version = versions.getOrDefault(file, 0L);
+            try { asset = load(file); }
+            catch (IOException e) {
+                byte[] body = ("File missing: " + file).getBytes();
+                ex.getResponseHeaders().set("Content-Type", "text/plain");
+                ex.sendResponseHeaders(404, body.length);
+                try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+                return;
+            }
+            Asset loaded = asset;
+            assets.compute(file, (k, cached) -> versions.getOrDefault(k, 0L) == version ? loaded : cached);
+        }
+
+        boolean gzip = asset.gzip() != null && acceptsGzip(ex.getRequestHeaders().getFirst("Accept-Encoding"));
+        String etag = gzip ? asset.gzipEtag() : asset.etag();
+        ex.getResponseHeaders().set("Content-Type", type);
+        ex.getResponseHeaders().set("ETag", etag);
+        ex.getResponseHeaders().set("Cache-Control", "no-cache");
+        ex.getResponseHeaders().set("Vary", "Accept-Encoding");
+
+        String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && matches(ifNoneMatch, asset)) {
+            notModified.increment();
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return;
+        }
+
+        byte[] body = gzip ? asset.gzip() : asset.raw();
+        if (gzip) ex.getResponseHeaders().set("Content-Encoding", "gzip");
+        if ("HEAD".equals(ex.getRequestMethod())) { ex.sendResponseHeaders(200, -1); ex.close(); return; }
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+    }
+
+    /** Starts the daemon thread that invalidates cached assets when their file is touched. */
+    public void watch() {
+        Thread t = new Thread(() -> {
+            try (WatchService ws = root.getFileSystem().newWatchService()) {
+                root.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                while (true) {
+                    WatchKey key = ws.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (!(event.context() instanceof Path changed)) continue;
+                        versions.merge(changed.toString(), 1L, Long::sum); // before the remove, see serve()
+                        if (assets.remove(changed.toString()) != null) System.out.println("Static asset changed, reloading: " + changed);
+                    }
+                    if (!key.reset()) break;
+                }
+            } catch (IOException e) { e.printStackTrace(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }, "static-asset-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private Asset load(String file) throws IOException {
+        byte[] raw = Files.readAllBytes(root.resolve(file));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.length / 3 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bos)) { gz.write(raw); }
+        byte[] gzip = bos.size() < raw.length ? bos.toByteArray() : null;
+        String hash = sha256Hex(raw).substring(0, 32);
+        return new Asset(raw, gzip, "\"" + hash + "\"", "\"" + hash + "-gz\"");
+    }
+
+    private static boolean matches(String ifNoneMatch, Asset asset) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(asset.etag()) || tag.equals(asset.gzipEtag())) return true;
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String c = coding.trim().toLowerCase();
+            if (c.startsWith("gzip") && !c.replace(" ", "").endsWith("q=0")) return true;
+        }
+        return false;
+    }
+
+    static String sha256Hex(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    }
+}
@@ -0,0 +1,101 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.sqlite.SQLiteCommitListener;
+import org.sqlite.SQLiteConnection;
+
+/**
+ * Per-table change counters for caches built from the database. Row changes on the writer
+ * connection are reported by SQLite's update hook; the tables touched by a transaction are
+ * bumped once it has committed and the writer is released, so a reader that sees the new
+ * version also sees the new rows. Commits from other processes are found by polling
+ * PRAGMA data_version on the writer, and bump every table since SQLite cannot say which
+ * ones they touched.
+ *
+ * Tunable: -Dvlab.cache.pollMillis=2000 (0 turns the cross-process poll off)
+ */
+class TableVersions {
+
+    private final ConnectionPool pool;
+    private final long pollMillis;
+    private final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final AtomicLong everything = new AtomicLong();
+
+    // Only the thread holding the writer adds to these; the lock just publishes them to the poller.
+    private final Set<String> pending = new HashSet<>();
+    private final Set<String> committed = new HashSet<>();
+    private boolean committedUnknown;
+    private long dataVersion = -1;
+
+    TableVersions(ConnectionPool pool, long pollMillis) throws SQLException {
+        this.pool = pool;
+        this.pollMillis = pollMillis;
+        try (Connection conn = pool.writer()) {
+            SQLiteConnection sqlite = conn.unwrap(SQLiteConnection.class);
+            sqlite.addUpdateListener((type, database, table, rowId) -> { synchronized (this) { pending.add(table); } });
+            sqlite.addCommitListener(new SQLiteCommitListener() {
+                @Override public void onCommit() { commit(); }
+                @Override public void onRollback() { synchronized (TableVersions.this) { pending.clear(); } }
+            });
+            dataVersion = dataVersion(conn);
+        }
+        pool.onWriterReleased(this::publish);
+    }
+
+    static TableVersions fromSystemProperties(ConnectionPool pool) throws SQLException {
+        TableVersions tv = new TableVersions(pool, Long.getLong("vlab.cache.pollMillis", 2000));
+        tv.start();
+        return tv;
+    }
+
+    /** A stamp that grows whenever any of the tables changes. */
+    long version(String... tables) {
+        long v = everything.get();
+        for (String t : tables) {
+            AtomicLong counter = versions.get(t);
+            if (counter != null) v += counter.get();
+        }
+        return v;
+    }
+
+    private void start() {
+        if (pollMillis <= 0) return;
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try { Thread.sleep(pollMillis); }
+                catch (InterruptedException e) { return; }
+                try (Connection conn = pool.writer()) {
+                    long v = dataVersion(conn);
+                    if (v != dataVersion) { dataVersion = v; everything.incrementAndGet(); }
+                } catch (SQLException | RuntimeException e) { e.printStackTrace(); }
+            }
+        }, "table-versions");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Runs inside sqlite3_commit_hook, before the commit is visible; publish() does the bumping.
+    private synchronized void commit() {
+        // a commit without row events (e.g. DELETE FROM t, which skips the update hook) may have touched anything
+        if (pending.isEmpty()) committedUnknown = true;
+        committed.addAll(pending);
+        pending.clear();
+    }
+
+    private synchronized void publish() {
+        for (String t : committed) versions.computeIfAbsent(t, k -> new AtomicLong()).incrementAndGet();
+        committed.clear();
+        if (committedUnknown) { everything.incrementAndGet(); committedUnknown = false; }
+    }
+
+    private static long dataVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA data_version")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Re-scores every completed attempt of a test from its stored answer_responses against the
+ * test's current answer key, for when a question's correct option was wrong. Responses are read
+ * in result order, so each attempt is one contiguous run and the runs are scored in parallel;
+ * only scores that changed are written, vlab.grading.batchSize (default 500) rows per queued
+ * write so the writer is never held for long. Attempts with no stored responses (expired, or
+ * submitted before responses were recorded) are left as they are.
+ *
+ * Metrics: grading.regrade.submissions, grading.regrade.changed, grading.regrade.per_sec (last run).
+ */
+class TestRegrader {
+
+    /** perSecond counts every submission scored, changed or not. */
+    record Report(int testId, int submissions, int changed, long millis, long perSecond) {}
+
+    private static final String SQL_RESPONSES = "SELECT r.result_id, r.question_id, r.chosen, t.score, t.total FROM answer_responses r JOIN test_results t ON t.id = r.result_id " +
+                                                "WHERE r.kind = 1 AND t.test_id = ? AND t.status = 'completed' ORDER BY r.result_id";
+
+    private final ConnectionPool pool;
+    private final WriteQueue writes;
+    private final AnswerKeys keys;
+    private final int batchSize = Integer.getInteger("vlab.grading.batchSize", 500);
+    private final LongAdder submissions = ServerMetrics.counter("grading.regrade.submissions");
+    private final LongAdder changed = ServerMetrics.counter("grading.regrade.changed");
+    private volatile long lastPerSecond;
+
+    TestRegrader(ConnectionPool pool, WriteQueue writes, AnswerKeys keys) {
+        this.pool = pool;
+        this.writes = writes;
+        this.keys = keys;
+        ServerMetrics.gauge("grading.regrade.per_sec", () -> lastPerSecond);
+    }
+
+    synchronized Report regrade(int testId) throws SQLException {
+        long began = System.nanoTime();
+        AnswerKeys.Key key = keys.key(testId);
+        int[] result = new int[1024], question = new int[1024], score = new int[1024], total = new int[1024];
+        byte[] chosen = new byte[1024];
+        int size = 0;
+        try (Connection conn = pool.reader(); PreparedStatement stmt = conn.prepareStatement(SQL_RESPONSES)) {
+            stmt.setInt(1, testId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                if (size == result.length) {
+                    int n = size * 2;
+                    result = Arrays.copyOf(result, n); question = Arrays.copyOf(question, n); chosen = Arrays.copyOf(chosen, n);
+                    score = Arrays.copyOf(score, n); total = Arrays.copyOf(total, n);
+                }
+                result[size] = rs.getInt(1); question[size] = rs.getInt(2); chosen[size] = (byte) rs.getInt(3); score[size] = rs.getInt(4); total[size] = rs.getInt(5);
+                size++;
+            }
+        }
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < size; i++) if (i == 0 || result[i] != result[i - 1]) starts.add(i);
+        starts.add(size);
+
+        // newScore[run] is -1 where the stored score and total are already right
+        int runs = starts.size() - 1;
+        int[] r = result, q = question, s = score, t = total, newScore = new int[runs];
+        byte[] c = chosen;
+        IntStream.range(0, runs).parallel().forEach(run -> {
+            int from = starts.get(run), to = starts.get(run + 1);
+            int graded = key.score(key.answers(Arrays.copyOfRange(q, from, to), Arrays.copyOfRange(c, from, to)));
+            newScore[run] = graded == s[from] && key.total() == t[from] ? -1 : graded;
+        });
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        int updated = 0;
+        for (int from = 0; from < runs; from += batchSize) {
+            int lo = from, hi = Math.min(runs, from + batchSize), n = 0;
+            for (int run = lo; run < hi; run++) if (newScore[run] >= 0) n++;
+            if (n == 0) continue;
+            updated += n;
+            pending.add(writes.submit(WriteQueue.Durability.NORMAL, conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement("UPDATE test_results SET score=?, total=? WHERE id=? AND status='completed'")) {
+                    for (int run = lo; run < hi; run++) {
+                        if (newScore[run] < 0) continue;
+                        stmt.setInt(1, newScore[run]);
+                        stmt.setInt(2, key.total());
+                        stmt.setInt(3, r[starts.get(run)]);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                return null;
+            }));
+        }
+        try { CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join(); }
+        catch (CompletionException e) { throw e.getCause() instanceof SQLException sql ? sql : new SQLException(e.getCause()); }
+
+        long millis = (System.nanoTime() - began) / 1_000_000;
+        long perSecond = runs * 1000L / Math.max(1, millis);
+        submissions.add(runs);
+        changed.add(updated);
+        lastPerSecond = perSecond;
+        return new Report(testId, runs, updated, millis, perSecond);
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical hashed timing wheel driven by one daemon thread. Three levels of wheelSize
+ * slots cover tick, tick*wheelSize and tick*wheelSize^2; timeouts further out sit in the top
+ * level and are re-hashed whenever their slot comes round. Scheduling and cancelling are O(1)
+ * from any thread; expiry callbacks run on the timer thread and should hand off real work.
+ */
+public class TimingWheel<T> {
+
+    public final class Timeout {
+        private final T item;
+        private final long deadlineTick;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Timeout(T item, long deadlineTick) { this.item = item; this.deadlineTick = deadlineTick; }
+
+        public T item() { return item; }
+
+        public void cancel() {
+            if (done.compareAndSet(false, true)) pending.decrementAndGet();
+        }
+
+        boolean isDone() { return done.get(); }
+    }
+
+    private static final int LEVELS = 3;
+
+    private final String name;
+    private final long tickMillis;
+    private final int wheelSize;
+    private final Consumer<T> onExpire;
+    private final long startMillis = System.currentTimeMillis();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Timeout>[][] wheels = new ArrayDeque[LEVELS][];
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation; every slot holds Timeouts only
+    public TimingWheel(String name, long tickMillis, int wheelSize, Consumer<T> onExpire) {
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.onExpire = onExpire;
+        for (int level = 0; level < LEVELS; level++) {
+            wheels[level] = new ArrayDeque[wheelSize];
+            for (int i = 0; i < wheelSize; i++) wheels[level][i] = new ArrayDeque<>();
+        }
+    }
+
+    public int pending() { return pending.get(); }
+
+    /** Schedules item to expire at the given wall-clock time (epoch millis). Safe from any thread. */
+    public Timeout schedule(T item, long deadlineMillis) {
+        long tick = Math.max(0, (deadlineMillis - startMillis + tickMillis - 1) / tickMillis);
+        Timeout t = new Timeout(item, tick);
+        pending.incrementAndGet();
+        incoming.add(t);
+        return t;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                long next = startMillis + (currentTick + 1) * tickMillis;
+                long sleep = next - System.currentTimeMillis();
+                if (sleep > 0) Thread.sleep(sleep);
+                long nowTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+                drainIncoming();
+                while (currentTick < nowTick) advance();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void drainIncoming() {
+        Timeout t;
+        while ((t = incoming.poll()) != null) if (!t.isDone()) place(t);
+    }
+
+    private void place(Timeout t) {
+        long delta = t.deadlineTick - currentTick;
+        if (delta <= 0) { wheels[0][(int) ((currentTick + 1) % wheelSize)].add(t); return; }
+        long span = wheelSize;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < span || level == LEVELS - 1) {
+                long slotTick = level == 0 ? t.deadlineTick : t.deadlineTick / (span / wheelSize);
+                wheels[level][(int) (slotTick % wheelSize)].add(t);
+                return;
+            }
+            span *= wheelSize;
+        }
+    }
+
+    private void advance() {
+        currentTick++;
+        ArrayDeque<Timeout> due = wheels[0][(int) (currentTick % wheelSize)];
+        // cascade higher levels whose slot boundary we just crossed, top level first
+        long unit = 1;
+        for (int level = 1; level < LEVELS; level++) unit *= wheelSize;
+        for (int level = LEVELS - 1; level >= 1; level--) {
+            if (currentTick % unit == 0) {
+                ArrayDeque<Timeout> slot = wheels[level][(int) ((currentTick / unit) % wheelSize)];
+                ArrayDeque<Timeout> moving = new ArrayDeque<>(slot);
+                slot.clear();
+                for (Timeout t : moving) {
+                    if (t.isDone()) continue;
+                    if (t.deadlineTick <= currentTick) due.add(t); else place(t);
+                }
+            }
+            unit /= wheelSize;
+        }
+        int n = due.size();
+        for (int i = 0; i < n; i++) {
+            Timeout t = due.poll();
+            if (t.isDone()) continue;
+            if (t.deadlineTick > currentTick) { place(t); continue; }
+            if (!t.done.compareAndSet(false, true)) continue;
+            pending.decrementAndGet();
+            try { onExpire.accept(t.item); }
+            catch (RuntimeException e) { e.printStackTrace(); }
+        }
+    }
+}
@@ -2,7 +2,10 @@ public class UserSession {
     public String username;
     public String role;
     public String fullName;
-    public java.util.List<Question> currentQuiz; // Stores the quiz for grading
+    // Quiz being taken: topic plus questions.id of each question in the order served. Only the ids
+    // are kept; a submit is graded against the question bank, so no answer key travels with a session.
+    public String quizTopic;
+    public int[] quizQuestionIds;
 
     public UserSession(String username, String role, String fullName) {
         this.username = username;
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Incremental ingest of exam webcam recordings. The browser posts each MediaRecorder chunk as
+ * soon as it is produced, keyed by result id and sequence number; chunks land on disk as
+ * test_videos/chunks/{resultId}/{seq}.part and are stitched together in order on finalize.
+ *
+ * Appends are idempotent (a retried chunk replaces the same file atomically), may arrive out of
+ * order, and the list of received sequence numbers can be queried to resume after a network blip.
+ * Received sequence numbers are kept in memory per result; the chunk directory is listed only
+ * the first time a result is touched after a restart.
+ */
+public class VideoChunkStore {
+
+    public record FinalizeResult(String videoPath, List<Integer> missing) {}
+
+    private final Path videoDir;
+    private final Path chunkRoot;
+    private final long maxChunkBytes;
+    private final ConcurrentHashMap<Integer, Set<Integer>> receivedSeqs = new ConcurrentHashMap<>();
+
+    public VideoChunkStore(Path videoDir, long maxChunkBytes) {
+        this.videoDir = videoDir;
+        this.chunkRoot = videoDir.resolve("chunks");
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    public static String videoFileName(String username, int resultId) {
+        return "test_" + username + "_" + resultId + ".webm";
+    }
+
+    /** Stores one chunk and returns how many distinct chunks have been received for the result. */
+    public int append(int resultId, int seq, InputStream body) throws IOException {
+        Path dir = chunkRoot.resolve(String.valueOf(resultId));
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(seq + "." + Thread.currentThread().getId() + ".tmp");
+        long total = 0;
+        try (OutputStream os = Files.newOutputStream(tmp)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = body.read(buffer)) != -1) {
+                total += n;
+                if (total > maxChunkBytes) throw new MultipartParser.LimitExceededException("Chunk exceeds " + maxChunkBytes + " bytes");
+                os.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, dir.resolve(seq + ".part"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Set<Integer> seqs = seqs(resultId);
+        seqs.add(seq);
+        return seqs.size();
+    }
+
+    public List<Integer> received(int resultId) throws IOException {
+        List<Integer> seqs = new ArrayList<>(seqs(resultId));
+        seqs.sort(null);
+        return seqs;
+    }
+
+    private Set<Integer> seqs(int resultId) throws IOException {
+        Set<Integer> seqs = receivedSeqs.get(resultId);
+        if (seqs != null) return seqs;
+        Set<Integer> loaded = ConcurrentHashMap.newKeySet();
+        Path dir = chunkRoot.resolve(String.valueOf(resultId));
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                files.map(p -> p.getFileName().toString()).filter(n -> n.endsWith(".part"))
+                     .forEach(n -> loaded.add(Integer.parseInt(n.substring(0, n.length() - 5))));
+            }
+        }
+        seqs = receivedSeqs.putIfAbsent(resultId, loaded);
+        return seqs != null ? seqs : loaded;
+    }
+
+    /**
+     * Concatenates chunks 0..expected-1 into the final recording. If some are missing nothing is
+     * written and the missing sequence numbers are returned so the client can resend them.
+     * Finalizing twice returns the already stitched file.
+     */
+    public synchronized FinalizeResult finalizeRecording(int resultId, int expected, String fileName) throws IOException {
+        Path target = videoDir.resolve(fileName);
+        Path dir = chunkRoot.resolve(String.valueOf(resultId));
+        if (Files.exists(target) && !Files.isDirectory(dir)) return new FinalizeResult(fileName, List.of());
+
+        List<Integer> have = received(resultId);
+        if (expected <= 0) expected = have.isEmpty() ? 0 : have.get(have.size() - 1) + 1;
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < expected; i++) if (!have.contains(i)) missing.add(i);
+        if (expected == 0 || !missing.isEmpty()) return new FinalizeResult(null, missing);
+        stitch(resultId, have.subList(0, expected), target);
+        return new FinalizeResult(fileName, List.of());
+    }
+
+    /**
+     * Stitches whatever chunks arrived, in sequence order, for an attempt closed without a finalize
+     * because its time ran out. A gap cuts the recording short there, but nothing that reached the
+     * server is dropped. Returns the file name, or null if no chunk was ever received.
+     */
+    public synchronized String finalizeReceived(int resultId, String fileName) throws IOException {
+        Path target = videoDir.resolve(fileName);
+        if (!Files.isDirectory(chunkRoot.resolve(String.valueOf(resultId)))) return Files.exists(target) ? fileName : null;
+        List<Integer> have = received(resultId);
+        if (have.isEmpty()) return null;
+        stitch(resultId, have, target);
+        return fileName;
+    }
+
+    private void stitch(int resultId, List<Integer> seqs, Path target) throws IOException {
+        Path dir = chunkRoot.resolve(String.valueOf(resultId));
+        Path tmp = Files.createTempFile(videoDir, target.getFileName().toString(), ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int seq : seqs) {
+                try (FileChannel in = FileChannel.open(dir.resolve(seq + ".part"), StandardOpenOption.READ)) {
+                    long pos = 0, size = in.size();
+                    while (pos < size) pos += in.transferTo(pos, size - pos, out);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) Files.deleteIfExists(p);
+        }
+        Files.deleteIfExists(dir);
+        receivedSeqs.remove(resultId);
+    }
+}
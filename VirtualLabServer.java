@@ -9,167 +9,216 @@ import java.util.*;
 public class VirtualLabServer {
 
     private static DatabaseManager dbManager = new DatabaseManager();
-    private static Map<String, UserSession> sessionDatabase = new HashMap<>(); 
+    private static SessionBackend sessions;
+    private static CatalogCache catalog;
+    private static ExamCache exams;
+    private static ExamTimers timers;
+    // Who may enter each context, enforced by its SessionFilter; contexts not listed are public
+    private static final Map<String, SessionFilter.Access> ACCESS = new HashMap<>();
+    // Every route must be listed here; route() refuses to register one that is not.
+    static {
+        allow(SessionFilter.Access.PUBLIC, "/", "/style.css", "/login", "/logout", "/signup", "/register", "/videos/",
+              "/ohmslaw", "/statesofmatter", "/simplependulum", "/phscale", "/beam", "/geartrain",
+              "/calculate", "/getstate", "/calculatependulum", "/calculateph", "/calculatebeam", "/calculategears");
+        allow(SessionFilter.Access.AUTHENTICATED, "/profile", "/feedback", "/getdashboarddata", "/getprofile", "/getquiz", "/submitquiz",
+              "/api/user/changepassword", "/api/user/deleteaccount", "/api/user/uploadavatar", "/api/lectures", "/api/materials",
+              "/materials/download", "/files/", "/api/experiments", "/api/test/question_count", "/avatars/");
+        allow(SessionFilter.Access.roles("STUDENT", "TEACHER"), "/quiz", "/lectures", "/materials", "/tests");
+        allow(SessionFilter.Access.roles("STUDENT"), "/student_menu", "/dashboard", "/test_exam", "/api/student/submit_feedback",
+              "/api/test/active_tests", "/api/test/start", "/api/test/get_questions", "/api/test/submit", "/api/test/student_results",
+              "/api/test/upload_video", "/api/test/video_chunk", "/api/test/video_chunks", "/api/test/video_finalize", "/api/test/check_taken");
+        allow(SessionFilter.Access.roles("TEACHER"), "/teacher_menu", "/api/teacher/students", "/api/teacher/addstudent", "/api/teacher/updatestudent",
+              "/api/teacher/delete", "/api/teacher/feedback", "/api/teacher/performance", "/api/teacher/performance_summary",
+              "/api/teacher/questions", "/api/teacher/save_question", "/api/teacher/delete_question", "/api/teacher/add_lecture",
+              "/api/teacher/upload_video", "/api/teacher/delete_lecture", "/api/teacher/upload_material", "/api/teacher/delete_material",
+              "/api/teacher/student_feedback", "/api/teacher/feedback_count", "/api/teacher/mark_feedback_read",
+              "/api/teacher/delete_student_feedback", "/api/teacher/analytics", "/api/teacher/item_analysis");
+        allow(SessionFilter.Access.roles("TEACHER"), "/api/test/questions", "/api/test/add_question", "/api/test/update_question",
+              "/api/test/delete_question", "/api/test/schedule", "/api/test/scheduled_tests", "/api/test/update_scheduled",
+              "/api/test/delete_scheduled", "/api/test/results", "/api/test/results_summary", "/api/test/replay", "/api/test/regrade",
+              "/api/test/video/");
+        allow(SessionFilter.Access.roles("ADMIN"), "/admin_menu", "/api/admin/users", "/api/admin/adduser", "/api/admin/updateuser",
+              "/api/admin/deleteuser", "/api/admin/feedbacks", "/api/admin/clearfeedback", "/api/admin/add_experiment",
+              "/api/admin/delete_experiment", "/api/admin/metrics");
+    }
+    private static AdmissionControl admission = new AdmissionControl();
+    private static StaticAssetCache staticAssets = new StaticAssetCache(Paths.get("."));
+    private static final long MAX_UPLOAD_BYTES = Long.getLong("vlab.upload.maxBodyBytes", 2L * 1024 * 1024 * 1024);
+    private static MultipartParser uploadParser = new MultipartParser(MAX_UPLOAD_BYTES, Long.getLong("vlab.upload.maxPartBytes", MAX_UPLOAD_BYTES));
+    private static AvatarStore avatars = AvatarStore.fromSystemProperties();
+    private static VideoChunkStore videoChunks = new VideoChunkStore(Paths.get("test_videos"), Long.getLong("vlab.upload.maxChunkBytes", 16L * 1024 * 1024));
+    private static Map<Integer, String> testResultOwners = new java.util.concurrent.ConcurrentHashMap<>();
 
     public static void main(String[] args) throws IOException {
         try { Class.forName("org.sqlite.JDBC"); } 
         catch (ClassNotFoundException e) { System.out.println("FATAL ERROR: SQLite JAR Missing! Download sqlite-jdbc-3.30.1.jar"); return; }
         
         dbManager.setupDatabase();
+        sessions = SessionBackend.fromSystemProperties(dbManager);
+        catalog = new CatalogCache(dbManager.tableVersions());
+        exams = new ExamCache(dbManager, dbManager.tableVersions(), catalog);
+        exams.start();
+        timers = new ExamTimers(dbManager, videoChunks);
+        timers.start();
+        staticAssets.watch();
         int port = 8080;
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), Integer.getInteger("vlab.backlog", 512));
 
         // Static & Login
-        server.createContext("/style.css", ex -> serveFile(ex, "style.css", "text/css"));
-        server.createContext("/login", ex -> handleLogin(ex));
-        server.createContext("/logout", ex -> handleLogout(ex));
-        server.createContext("/signup", ex -> serveFile(ex, "signup.html", "text/html"));
-        server.createContext("/register", ex -> handleRegister(ex));
-        server.createContext("/", ex -> redirect(ex, "/login"));
+        route(server, "/style.css", ex -> serveFile(ex, "style.css", "text/css"));
+        route(server, "/login", ex -> handleLogin(ex));
+        route(server, "/logout", ex -> handleLogout(ex));
+        route(server, "/signup", ex -> serveFile(ex, "signup.html", "text/html"));
+        route(server, "/register", ex -> handleRegister(ex));
+        route(server, "/", ex -> redirect(ex, "/login"));
 
         // Menus
-        server.createContext("/student_menu", ex -> { if(checkRole(ex, "STUDENT")) serveFile(ex, "student_menu.html", "text/html"); });
-        server.createContext("/teacher_menu", ex -> { if(checkRole(ex, "TEACHER")) serveFile(ex, "teacher_menu.html", "text/html"); });
-        server.createContext("/admin_menu", ex -> { if(checkRole(ex, "ADMIN")) serveFile(ex, "admin_menu.html", "text/html"); });
+        route(server, "/student_menu", ex -> serveFile(ex, "student_menu.html", "text/html"));
+        route(server, "/teacher_menu", ex -> serveFile(ex, "teacher_menu.html", "text/html"));
+        route(server, "/admin_menu", ex -> serveFile(ex, "admin_menu.html", "text/html"));
 
         // Pages
-        server.createContext("/dashboard", ex -> { if(checkRole(ex, "STUDENT")) serveFile(ex, "dashboard.html", "text/html"); });
-        server.createContext("/profile", ex -> { if(checkAuth(ex)) serveFile(ex, "profile.html", "text/html"); });
-        server.createContext("/quiz", ex -> { if(checkRoleMulti(ex, "STUDENT", "TEACHER")) serveFile(ex, "quiz.html", "text/html"); });
+        route(server, "/dashboard", ex -> serveFile(ex, "dashboard.html", "text/html"));
+        route(server, "/profile", ex -> serveFile(ex, "profile.html", "text/html"));
+        route(server, "/quiz", ex -> serveFile(ex, "quiz.html", "text/html"));
 
         // Experiments
-        server.createContext("/ohmslaw", ex -> serveFile(ex, "ohmslaw.html", "text/html"));
-        server.createContext("/statesofmatter", ex -> serveFile(ex, "statesofmatter.html", "text/html"));
-        server.createContext("/simplependulum", ex -> serveFile(ex, "simplependulum.html", "text/html"));
-        server.createContext("/phscale", ex -> serveFile(ex, "phscale.html", "text/html"));
-        server.createContext("/beam", ex -> serveFile(ex, "beam.html", "text/html"));
-        server.createContext("/geartrain", ex -> serveFile(ex, "geartrain.html", "text/html"));
+        route(server, "/ohmslaw", ex -> serveFile(ex, "ohmslaw.html", "text/html"));
+        route(server, "/statesofmatter", ex -> serveFile(ex, "statesofmatter.html", "text/html"));
+        route(server, "/simplependulum", ex -> serveFile(ex, "simplependulum.html", "text/html"));
+        route(server, "/phscale", ex -> serveFile(ex, "phscale.html", "text/html"));
+        route(server, "/beam", ex -> serveFile(ex, "beam.html", "text/html"));
+        route(server, "/geartrain", ex -> serveFile(ex, "geartrain.html", "text/html"));
 
         // Logic APIs
-        server.createContext("/calculate", (ex) -> calculateOhmsLaw(ex));
-        server.createContext("/getstate", (ex) -> getMatterState(ex));
-        server.createContext("/calculatependulum", (ex) -> calculatePendulum(ex));
-        server.createContext("/calculateph", (ex) -> calculatePh(ex));
-        server.createContext("/calculatebeam", (ex) -> calculateBeam(ex));
-        server.createContext("/calculategears", (ex) -> calculateGears(ex));
+        route(server, "/calculate", (ex) -> calculateOhmsLaw(ex));
+        route(server, "/getstate", (ex) -> getMatterState(ex));
+        route(server, "/calculatependulum", (ex) -> calculatePendulum(ex));
+        route(server, "/calculateph", (ex) -> calculatePh(ex));
+        route(server, "/calculatebeam", (ex) -> calculateBeam(ex));
+        route(server, "/calculategears", (ex) -> calculateGears(ex));
 
         // User & Data APIs
-        server.createContext("/getdashboarddata", (ex) -> handleDashboardData(ex));
-        server.createContext("/getprofile", (ex) -> handleProfileData(ex));
-        server.createContext("/getquiz", (ex) -> handleGetQuiz(ex));
-        server.createContext("/submitquiz", (ex) -> handleSubmitQuiz(ex));
-        server.createContext("/api/user/changepassword", (ex) -> handleChangePassword(ex));
-        server.createContext("/api/user/deleteaccount", (ex) -> handleDeleteAccount(ex));
-        server.createContext("/api/user/uploadavatar", (ex) -> handleAvatarUpload(ex));
+        route(server, "/getdashboarddata", (ex) -> handleDashboardData(ex));
+        route(server, "/getprofile", (ex) -> handleProfileData(ex));
+        route(server, "/getquiz", (ex) -> handleGetQuiz(ex));
+        route(server, "/submitquiz", (ex) -> handleSubmitQuiz(ex));
+        route(server, "/api/user/changepassword", (ex) -> handleChangePassword(ex));
+        route(server, "/api/user/deleteaccount", (ex) -> handleDeleteAccount(ex));
+        route(server, "/api/user/uploadavatar", (ex) -> handleAvatarUpload(ex));
+        route(server, "/avatars/", (ex) -> serveAvatar(ex));
 
         // Teacher APIs
-        server.createContext("/api/teacher/students", (ex) -> handleTeacherGetStudents(ex));
-        server.createContext("/api/teacher/addstudent", (ex) -> handleTeacherAddStudent(ex));
-        server.createContext("/api/teacher/updatestudent", (ex) -> handleTeacherUpdateStudent(ex));
-        server.createContext("/api/teacher/delete", (ex) -> handleTeacherDeleteStudent(ex));
-        server.createContext("/api/teacher/feedback", (ex) -> handleTeacherFeedback(ex));
-        server.createContext("/api/teacher/performance", (ex) -> handleTeacherGetPerformance(ex));
-        server.createContext("/api/teacher/questions", (ex) -> { if(checkRole(ex, "TEACHER")) send(ex, 200, "application/json", dbManager.getAllQuestionsAsJson()); });
-        server.createContext("/api/teacher/save_question", (ex) -> handleTeacherSaveQuestion(ex));
-        server.createContext("/api/teacher/delete_question", (ex) -> handleTeacherDeleteQuestion(ex));
+        route(server, "/api/teacher/students", (ex) -> handleTeacherGetStudents(ex));
+        route(server, "/api/teacher/addstudent", (ex) -> handleTeacherAddStudent(ex));
+        route(server, "/api/teacher/updatestudent", (ex) -> handleTeacherUpdateStudent(ex));
+        route(server, "/api/teacher/delete", (ex) -> handleTeacherDeleteStudent(ex));
+        route(server, "/api/teacher/feedback", (ex) -> handleTeacherFeedback(ex));
+        route(server, "/api/teacher/performance", (ex) -> handleTeacherGetPerformance(ex));
+        route(server, "/api/teacher/performance_summary", (ex) -> sendJson(ex, json -> dbManager.writePerformanceSummaryJson(json, parseQuery(ex.getRequestURI().getQuery()).get("student"))));
+        route(server, "/api/teacher/analytics", (ex) -> handleTeacherAnalytics(ex));
+        route(server, "/api/teacher/item_analysis", (ex) -> handleItemAnalysis(ex));
+        route(server, "/api/teacher/questions", (ex) -> catalog.serve(ex, "questions", dbManager::writeAllQuestionsJson, "questions"));
+        route(server, "/api/teacher/save_question", (ex) -> handleTeacherSaveQuestion(ex));
+        route(server, "/api/teacher/delete_question", (ex) -> handleTeacherDeleteQuestion(ex));
 
         // Lecture APIs
-        server.createContext("/api/lectures", (ex) -> { if(checkAuth(ex)) send(ex, 200, "application/json", dbManager.getAllLecturesAsJson()); });
-        server.createContext("/api/teacher/add_lecture", (ex) -> handleTeacherAddLecture(ex));
-        server.createContext("/api/teacher/upload_video", (ex) -> handleTeacherUploadVideo(ex));
-        server.createContext("/api/teacher/delete_lecture", (ex) -> handleTeacherDeleteLecture(ex));
-        server.createContext("/lectures", ex -> { if(checkRoleMulti(ex, "STUDENT", "TEACHER")) serveFile(ex, "lectures.html", "text/html"); });
-        server.createContext("/videos/", ex -> serveVideoFile(ex));
+        route(server, "/api/lectures", (ex) -> catalog.serve(ex, "lectures", dbManager::writeAllLecturesJson, "lectures"));
+        route(server, "/api/teacher/add_lecture", (ex) -> handleTeacherAddLecture(ex));
+        route(server, "/api/teacher/upload_video", (ex) -> handleTeacherUploadVideo(ex));
+        route(server, "/api/teacher/delete_lecture", (ex) -> handleTeacherDeleteLecture(ex));
+        route(server, "/lectures", ex -> serveFile(ex, "lectures.html", "text/html"));
+        route(server, "/videos/", ex -> serveVideoFile(ex));
 
         // Study Materials APIs
-        server.createContext("/api/materials", (ex) -> { if(checkAuth(ex)) send(ex, 200, "application/json", dbManager.getAllMaterialsAsJson()); });
-        server.createContext("/api/teacher/upload_material", (ex) -> handleTeacherUploadMaterial(ex));
-        server.createContext("/api/teacher/delete_material", (ex) -> handleTeacherDeleteMaterial(ex));
-        server.createContext("/materials", ex -> { if(checkRoleMulti(ex, "STUDENT", "TEACHER")) serveFile(ex, "materials.html", "text/html"); });
-        server.createContext("/materials/download", ex -> handleMaterialDownload(ex));
-        server.createContext("/files/", ex -> serveMaterialFile(ex));
+        route(server, "/api/materials", (ex) -> catalog.serve(ex, "materials", dbManager::writeAllMaterialsJson, "materials"));
+        route(server, "/api/teacher/upload_material", (ex) -> handleTeacherUploadMaterial(ex));
+        route(server, "/api/teacher/delete_material", (ex) -> handleTeacherDeleteMaterial(ex));
+        route(server, "/materials", ex -> serveFile(ex, "materials.html", "text/html"));
+        route(server, "/materials/download", ex -> handleMaterialDownload(ex));
+        route(server, "/files/", ex -> serveMaterialFile(ex));
 
         // Student Feedback APIs
-        server.createContext("/api/student/submit_feedback", (ex) -> handleStudentSubmitFeedback(ex));
-        server.createContext("/api/teacher/student_feedback", (ex) -> handleGetStudentFeedback(ex));
-        server.createContext("/api/teacher/feedback_count", (ex) -> { if(checkRole(ex, "TEACHER")) send(ex, 200, "application/json", "{\"count\":" + dbManager.getUnreadFeedbackCount() + "}"); });
-        server.createContext("/api/teacher/mark_feedback_read", (ex) -> handleMarkFeedbackRead(ex));
-        server.createContext("/api/teacher/delete_student_feedback", (ex) -> handleDeleteStudentFeedback(ex));
+        route(server, "/api/student/submit_feedback", (ex) -> handleStudentSubmitFeedback(ex));
+        route(server, "/api/teacher/student_feedback", (ex) -> handleGetStudentFeedback(ex));
+        route(server, "/api/teacher/feedback_count", (ex) -> send(ex, 200, "application/json", "{\"count\":" + dbManager.getUnreadFeedbackCount() + "}"));
+        route(server, "/api/teacher/mark_feedback_read", (ex) -> handleMarkFeedbackRead(ex));
+        route(server, "/api/teacher/delete_student_feedback", (ex) -> handleDeleteStudentFeedback(ex));
 
         // Student Pages
-        server.createContext("/tests", ex -> { if(checkRoleMulti(ex, "STUDENT", "TEACHER")) serveFile(ex, "tests.html", "text/html"); });
-        server.createContext("/feedback", ex -> { 
+        route(server, "/tests", ex -> serveFile(ex, "tests.html", "text/html"));
+        route(server, "/feedback", ex -> { 
             // Allow students, teachers, and admins to access feedback
-            if(checkAuth(ex)) {
-                String role = getSessionRole(ex);
-                if("STUDENT".equals(role)) {
-                    serveFile(ex, "feedback.html", "text/html");
-                } else if("TEACHER".equals(role)) {
-                    serveFile(ex, "teacher_feedback.html", "text/html");
-                } else if("ADMIN".equals(role)) {
-                    serveFile(ex, "admin_feedback.html", "text/html");
-                } else {
-                    send(ex, 403, "text/html", "Forbidden");
-                }
+            String role = getSession(ex).role;
+            if("STUDENT".equals(role)) {
+                serveFile(ex, "feedback.html", "text/html");
+            } else if("TEACHER".equals(role)) {
+                serveFile(ex, "teacher_feedback.html", "text/html");
+            } else if("ADMIN".equals(role)) {
+                serveFile(ex, "admin_feedback.html", "text/html");
+            } else {
+                send(ex, 403, "text/html", "Forbidden");
             }
         });
 
         // Test Module APIs
-        server.createContext("/test_exam", ex -> { if(checkRole(ex, "STUDENT")) serveFile(ex, "test_exam.html", "text/html"); });
-        server.createContext("/api/test/questions", ex -> handleGetTestQuestions(ex));
-        server.createContext("/api/test/add_question", ex -> handleAddTestQuestion(ex));
-        server.createContext("/api/test/update_question", ex -> handleUpdateTestQuestion(ex));
-        server.createContext("/api/test/delete_question", ex -> handleDeleteTestQuestion(ex));
-        server.createContext("/api/test/schedule", ex -> handleScheduleTest(ex));
-        server.createContext("/api/test/scheduled_tests", ex -> handleGetScheduledTests(ex));
-        server.createContext("/api/test/update_scheduled", ex -> handleUpdateScheduledTest(ex));
-        server.createContext("/api/test/delete_scheduled", ex -> handleDeleteScheduledTest(ex));
-        server.createContext("/api/test/active_tests", ex -> handleGetActiveTests(ex));
-        server.createContext("/api/test/start", ex -> handleStartTest(ex));
-        server.createContext("/api/test/get_questions", ex -> handleGetTestQuestionsForExam(ex));
-        server.createContext("/api/test/submit", ex -> handleSubmitTest(ex));
-        server.createContext("/api/test/results", ex -> handleGetTestResults(ex));
-        server.createContext("/api/test/student_results", ex -> handleGetStudentResults(ex));
-        server.createContext("/api/test/upload_video", ex -> handleUploadTestVideo(ex));
-        server.createContext("/api/test/video/", ex -> serveTestVideo(ex));
-        server.createContext("/api/test/question_count", ex -> handleGetQuestionCount(ex));
-        server.createContext("/api/test/check_taken", ex -> handleCheckTestTaken(ex));
+        route(server, "/test_exam", ex -> serveFile(ex, "test_exam.html", "text/html"));
+        route(server, "/api/test/questions", ex -> handleGetTestQuestions(ex));
+        route(server, "/api/test/add_question", ex -> handleAddTestQuestion(ex));
+        route(server, "/api/test/update_question", ex -> handleUpdateTestQuestion(ex));
+        route(server, "/api/test/delete_question", ex -> handleDeleteTestQuestion(ex));
+        route(server, "/api/test/schedule", ex -> handleScheduleTest(ex));
+        route(server, "/api/test/scheduled_tests", ex -> handleGetScheduledTests(ex));
+        route(server, "/api/test/update_scheduled", ex -> handleUpdateScheduledTest(ex));
+        route(server, "/api/test/delete_scheduled", ex -> handleDeleteScheduledTest(ex));
+        route(server, "/api/test/active_tests", ex -> handleGetActiveTests(ex));
+        route(server, "/api/test/start", ex -> handleStartTest(ex));
+        route(server, "/api/test/get_questions", ex -> handleGetTestQuestionsForExam(ex));
+        route(server, "/api/test/replay", ex -> handleReplayExam(ex));
+        route(server, "/api/test/regrade", ex -> handleRegradeTest(ex));
+        route(server, "/api/test/submit", ex -> handleSubmitTest(ex));
+        route(server, "/api/test/results", ex -> handleGetTestResults(ex));
+        route(server, "/api/test/results_summary", ex -> handleTestResultsSummary(ex));
+        route(server, "/api/test/student_results", ex -> handleGetStudentResults(ex));
+        route(server, "/api/test/upload_video", ex -> handleUploadTestVideo(ex));
+        route(server, "/api/test/video/", ex -> serveTestVideo(ex));
+        route(server, "/api/test/video_chunk", ex -> handleVideoChunk(ex));
+        route(server, "/api/test/video_chunks", ex -> handleVideoChunkStatus(ex));
+        route(server, "/api/test/video_finalize", ex -> handleVideoFinalize(ex));
+        route(server, "/api/test/question_count", ex -> handleGetQuestionCount(ex));
+        route(server, "/api/test/check_taken", ex -> handleCheckTestTaken(ex));
 
         // Admin APIs
-        server.createContext("/api/admin/users", (ex) -> handleAdminGetUsers(ex));
-        server.createContext("/api/admin/adduser", (ex) -> handleAdminAddUser(ex));
-        server.createContext("/api/admin/updateuser", (ex) -> handleAdminUpdateUser(ex));
-        server.createContext("/api/admin/deleteuser", (ex) -> handleAdminDeleteUser(ex));
-        server.createContext("/api/admin/feedbacks", (ex) -> handleAdminGetFeedback(ex));
-        server.createContext("/api/admin/clearfeedback", (ex) -> handleAdminClearFeedback(ex));
-        server.createContext("/api/experiments", (ex) -> {
-            if(!checkAuth(ex)) return;
-            List<Experiment> exps = dbManager.getAllExperiments();
-            StringBuilder json = new StringBuilder("[");
-            for(int i=0; i<exps.size(); i++) {
-                Experiment e = exps.get(i);
-                json.append(String.format("{\"id\":%d, \"title\":\"%s\", \"description\":\"%s\", \"filename\":\"%s\", \"category\":\"%s\"}", 
-                    e.id(), e.title(), e.description(), e.filename(), e.category()));
-                if(i<exps.size()-1) json.append(",");
-            }
-            json.append("]");
-            send(ex, 200, "application/json", json.toString());
-        });
-        server.createContext("/api/admin/add_experiment", (ex) -> {
-            if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "ADMIN")) return;
+        route(server, "/api/admin/users", (ex) -> handleAdminGetUsers(ex));
+        route(server, "/api/admin/adduser", (ex) -> handleAdminAddUser(ex));
+        route(server, "/api/admin/updateuser", (ex) -> handleAdminUpdateUser(ex));
+        route(server, "/api/admin/deleteuser", (ex) -> handleAdminDeleteUser(ex));
+        route(server, "/api/admin/feedbacks", (ex) -> handleAdminGetFeedback(ex));
+        route(server, "/api/admin/clearfeedback", (ex) -> handleAdminClearFeedback(ex));
+        route(server, "/api/experiments", (ex) -> catalog.serve(ex, "experiments", json -> {
+            json.beginArray();
+            for (Experiment e : dbManager.getAllExperiments())
+                json.beginObject().field("id", e.id()).field("title", e.title()).field("description", e.description()).field("filename", e.filename()).field("category", e.category()).endObject();
+            json.endArray();
+        }, "experiments"));
+        route(server, "/api/admin/add_experiment", (ex) -> {
+            if(!"POST".equals(ex.getRequestMethod())) return;
             Map<String, String> f = parseQuery(new String(ex.getRequestBody().readAllBytes()));
             dbManager.addExperiment(f.get("title"), f.get("description"), f.get("filename"), f.get("category"));
             redirect(ex, "/admin_menu");
         });
-        server.createContext("/api/admin/delete_experiment", (ex) -> {
-            if(!checkRole(ex, "ADMIN")) return;
+        route(server, "/api/admin/delete_experiment", (ex) -> {
             dbManager.deleteExperiment(Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id")));
             redirect(ex, "/admin_menu");
         });
 
-        server.setExecutor(null);
+        route(server, "/api/admin/metrics", (ex) -> send(ex, 200, "application/json", ServerMetrics.toJson()));
+
+        // Execution mode: -Dvlab.executor=virtual|pool|single
+        RequestExecutor executor = RequestExecutor.create(System.getProperty("vlab.executor", "virtual"), Integer.getInteger("vlab.pool.size", Runtime.getRuntime().availableProcessors() * 4));
+        server.setExecutor(executor);
         server.start();
-        System.out.println("Server started on port " + port);
+        System.out.println("Server started on port " + port + " (" + executor.getMode().name().toLowerCase() + " executor, " + System.getProperty("vlab.session.mode", "memory") + " sessions)");
         try { if (java.awt.Desktop.isDesktopSupported()) java.awt.Desktop.getDesktop().browse(new URI("http://localhost:" + port)); } catch (Exception e) {}
     }
     
@@ -290,9 +339,8 @@ public class VirtualLabServer {
             Map<String, String> form = parseQuery(new String(ex.getRequestBody().readAllBytes()));
             User user = dbManager.getUser(form.get("username"));
             if (user != null && user.password().equals(form.get("password"))) {
-                String token = UUID.randomUUID().toString();
-                sessionDatabase.put(token, new UserSession(user.username(), user.role(), user.fullName()));
-                ex.getResponseHeaders().set("Set-Cookie", "token=" + token + "; HttpOnly; Path=/");
+                String token = sessions.create(new UserSession(user.username(), user.role(), user.fullName()));
+                setSessionCookie(ex, token);
                 redirect(ex, user.role().equals("ADMIN") ? "/admin_menu" : (user.role().equals("TEACHER") ? "/teacher_menu" : "/student_menu"));
             } else { redirect(ex, "/login?error=true"); }
         }
@@ -305,52 +353,63 @@ public class VirtualLabServer {
         dbManager.createUser(new User(username, form.get("password"), "STUDENT", form.get("fullName"), ""));
         redirect(ex, "/login");
     }
-    private static void handleLogout(HttpExchange ex) throws IOException { ex.getResponseHeaders().set("Set-Cookie", "token=; Path=/; Max-Age=0"); redirect(ex, "/login"); }
+    private static void handleLogout(HttpExchange ex) throws IOException { sessions.remove(SessionFilter.token(ex)); ex.getResponseHeaders().set("Set-Cookie", "token=; Path=/; Max-Age=0"); redirect(ex, "/login"); }
     private static void handleChangePassword(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkAuth(ex)) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         UserSession s = getSession(ex); User u = dbManager.getUser(s.username);
         Map<String, String> f = parseQuery(new String(ex.getRequestBody().readAllBytes()));
         if(u.password().equals(f.get("old_password"))) { dbManager.updatePassword(u.username(), f.get("new_password")); send(ex, 200, "application/json", "{\"success\":true}"); }
         else send(ex, 400, "application/json", "{\"success\":false, \"message\":\"Wrong password\"}");
     }
     private static void handleDeleteAccount(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkAuth(ex)) return;
-        UserSession s = getSession(ex); dbManager.deleteUser(s.username); sessionDatabase.remove(getCookie(ex)); handleLogout(ex);
+        if(!"POST".equals(ex.getRequestMethod())) return;
+        UserSession s = getSession(ex); dbManager.deleteUser(s.username); sessions.removeUser(s.username); handleLogout(ex);
     }
     private static void handleAvatarUpload(HttpExchange ex) throws IOException {
-        if (!"POST".equals(ex.getRequestMethod()) || !checkAuth(ex)) return;
+        if (!"POST".equals(ex.getRequestMethod())) return;
         UserSession s = getSession(ex);
-        String base64Image = new String(ex.getRequestBody().readAllBytes());
-        boolean success = dbManager.updateAvatar(s.username, base64Image);
-        if(success) send(ex, 200, "application/json", "{\"success\": true}");
+        byte[] body = ex.getRequestBody().readNBytes((int) Math.min(Integer.MAX_VALUE - 8, avatars.maxUploadBytes() + 1));
+        if (body.length > avatars.maxUploadBytes()) { send(ex, 413, "application/json", "{\"success\": false, \"message\":\"Image too large\"}"); return; }
+        String hash = avatars.store(new String(body, StandardCharsets.US_ASCII));
+        if (hash == null) { send(ex, 400, "application/json", "{\"success\": false, \"message\":\"Not an image\"}"); return; }
+        boolean success = dbManager.updateAvatar(s.username, hash);
+        if(success) send(ex, 200, "application/json", "{\"success\": true, \"avatar\":\"" + AvatarStore.url(hash, 256) + "\"}");
         else send(ex, 500, "application/json", "{\"success\": false}");
     }
+    private static void serveAvatar(HttpExchange ex) throws IOException {
+        File file = avatars.file(ex.getRequestURI().getPath().substring("/avatars/".length()));
+        if (file == null) { send(ex, 404, "text/plain", "Avatar not found"); return; }
+        // the name is a content hash, so a given URL never changes
+        ex.getResponseHeaders().set("Cache-Control", "public, max-age=31536000, immutable");
+        FileStreamer.stream(ex, file, "image/jpeg", null);
+    }
     private static void handleProfileData(HttpExchange ex) throws IOException {
-        if (!checkAuth(ex)) return; UserSession s = getSession(ex); 
+        UserSession s = getSession(ex); 
         User u = dbManager.getUser(s.username);
-        send(ex, 200, "application/json", String.format("{\"fullName\":\"%s\", \"username\":\"%s\", \"role\":\"%s\", \"avatar\":\"%s\"}", u.fullName(), u.username(), u.role(), u.avatar()));
+        send(ex, 200, "application/json", String.format("{\"fullName\":\"%s\", \"username\":\"%s\", \"role\":\"%s\", \"avatar\":\"%s\", \"avatarSmall\":\"%s\"}",
+            u.fullName(), u.username(), u.role(), AvatarStore.url(u.avatar(), 256), AvatarStore.url(u.avatar(), 64)));
     }
     
     // --- Teacher Handlers ---
     private static void handleTeacherGetStudents(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
         List<User> list = dbManager.getUsersByRole("STUDENT");
         StringBuilder json = new StringBuilder("[");
         for(int i=0; i<list.size(); i++) { json.append(String.format("{\"username\":\"%s\", \"fullName\":\"%s\"}", list.get(i).username(), list.get(i).fullName())); if(i<list.size()-1)json.append(","); }
         json.append("]"); send(ex, 200, "application/json", json.toString());
     }
     private static void handleTeacherAddStudent(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         Map<String, String> f = parseQuery(new String(ex.getRequestBody().readAllBytes()));
         dbManager.createUser(new User(f.get("username"), f.get("password"), "STUDENT", f.get("fullName"), "")); redirect(ex, "/teacher_menu");
     }
     private static void handleTeacherUpdateStudent(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         Map<String, String> f = parseQuery(new String(ex.getRequestBody().readAllBytes()));
         dbManager.updateStudent(f.get("username"), f.get("password"), f.get("fullName")); redirect(ex, "/teacher_menu");
     }
     private static void handleTeacherDeleteStudent(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return; dbManager.deleteUser(parseQuery(ex.getRequestURI().getQuery()).get("username")); redirect(ex, "/teacher_menu");
+        String username = parseQuery(ex.getRequestURI().getQuery()).get("username");
+        dbManager.deleteUser(username); sessions.removeUser(username); redirect(ex, "/teacher_menu");
     }
     private static void handleTeacherFeedback(HttpExchange ex) throws IOException {
         if(!"POST".equals(ex.getRequestMethod())) return;
@@ -358,18 +417,30 @@ public class VirtualLabServer {
         dbManager.addFeedback(s.username, f.get("message")); redirect(ex, "/teacher_menu");
     }
     private static void handleTeacherGetPerformance(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
-        List<QuizPerformance> all = dbManager.getAllPerformance();
-        StringBuilder json = new StringBuilder("[");
-        for(int i=0; i<all.size(); i++) {
-            QuizPerformance p = all.get(i);
-            json.append(String.format("{\"student\":\"%s\", \"topic\":\"%s\", \"score\":%d, \"total\":%d, \"date\":\"%s\"}", p.username(), p.topic(), p.score(), p.total(), p.timestamp().toString().split("T")[0]));
-            if(i<all.size()-1)json.append(",");
-        }
-        json.append("]"); send(ex, 200, "application/json", json.toString());
+        Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
+        if (params.containsKey("limit") || params.containsKey("cursor")) { sendPage(ex, params, dbManager::writePerformancePageJson); return; }
+        sendJson(ex, dbManager::writeAllPerformanceJson);
+    }
+    // ?source=quiz|test&by=group|student&days=30
+    private static void handleTeacherAnalytics(HttpExchange ex) throws IOException {
+        Map<String, String> p = parseQuery(ex.getRequestURI().getQuery());
+        ScoreAnalytics.Source source; ScoreAnalytics.Dimension by; int days;
+        try {
+            source = ScoreAnalytics.Source.valueOf(p.getOrDefault("source", "quiz").toUpperCase());
+            by = ScoreAnalytics.Dimension.valueOf(p.getOrDefault("by", "group").toUpperCase());
+            days = Math.max(0, Math.min(366, Integer.parseInt(p.getOrDefault("days", "30"))));
+        } catch (RuntimeException e) { send(ex, 400, "text/plain", "Bad Request"); return; }
+        sendJson(ex, json -> dbManager.writeAnalyticsJson(json, source, by, days));
+    }
+    // ?kind=quiz|test: difficulty, discrimination and option counts per question of that bank
+    private static void handleItemAnalysis(HttpExchange ex) throws IOException {
+        ItemAnalysis.Kind kind;
+        try { kind = ItemAnalysis.Kind.valueOf(parseQuery(ex.getRequestURI().getQuery()).getOrDefault("kind", "quiz").toUpperCase()); }
+        catch (RuntimeException e) { send(ex, 400, "text/plain", "Bad Request"); return; }
+        sendJson(ex, json -> dbManager.writeItemAnalysisJson(json, kind));
     }
     private static void handleTeacherSaveQuestion(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         Map<String, String> f = parseQuery(new String(ex.getRequestBody().readAllBytes()));
         String[] opts = {f.get("opt0"), f.get("opt1"), f.get("opt2"), f.get("opt3")};
         Question q = new Question(f.get("topic"), f.get("question"), opts, Integer.parseInt(f.get("correctIndex")), f.get("explanation"));
@@ -377,139 +448,64 @@ public class VirtualLabServer {
         redirect(ex, "/teacher_menu");
     }
     private static void handleTeacherDeleteQuestion(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return; dbManager.deleteQuestion(Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id"))); redirect(ex, "/teacher_menu");
+        dbManager.deleteQuestion(Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id"))); redirect(ex, "/teacher_menu");
     }
 
     // --- Lecture Handlers ---
     private static void handleTeacherAddLecture(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         UserSession s = getSession(ex);
         Map<String, String> f = parseQuery(new String(ex.getRequestBody().readAllBytes()));
         dbManager.addLecture(f.get("title"), f.get("summary"), f.get("videoUrl"), f.get("category"), s.username);
         redirect(ex, "/teacher_menu");
     }
     private static void handleTeacherDeleteLecture(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
         dbManager.deleteLecture(Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id")));
         redirect(ex, "/teacher_menu");
     }
 
     private static void handleTeacherUploadVideo(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         UserSession s = getSession(ex);
         
         // Create videos directory if it doesn't exist
         File videosDir = new File("videos");
         if (!videosDir.exists()) videosDir.mkdir();
         
-        // Parse multipart form data
-        String contentType = ex.getRequestHeaders().getFirst("Content-Type");
-        if (contentType == null || !contentType.contains("multipart/form-data")) {
+        String boundary = MultipartParser.boundaryOf(ex.getRequestHeaders().getFirst("Content-Type"));
+        if (boundary == null) {
             send(ex, 400, "application/json", "{\"success\":false,\"error\":\"Invalid content type\"}");
             return;
         }
         
-        String boundary = "--" + contentType.split("boundary=")[1];
-        byte[] bodyBytes = ex.getRequestBody().readAllBytes();
-        
-        // Parse form fields
-        String title = "", summary = "", category = "";
-        String videoFileName = "";
-        byte[] videoData = null;
-        
-        // Find all parts by searching for boundary in bytes
-        byte[] boundaryBytes = boundary.getBytes(StandardCharsets.UTF_8);
-        int pos = 0;
-        
-        while (pos < bodyBytes.length) {
-            // Find start of boundary
-            int boundaryStart = indexOf(bodyBytes, boundaryBytes, pos);
-            if (boundaryStart == -1) break;
-            
-            // Find end of this part (next boundary)
-            int nextBoundary = indexOf(bodyBytes, boundaryBytes, boundaryStart + boundaryBytes.length);
-            if (nextBoundary == -1) nextBoundary = bodyBytes.length;
-            
-            // Extract this part
-            int partStart = boundaryStart + boundaryBytes.length;
-            // Skip \r\n after boundary
-            if (partStart < bodyBytes.length && bodyBytes[partStart] == '\r') partStart++;
-            if (partStart < bodyBytes.length && bodyBytes[partStart] == '\n') partStart++;
+        try (MultipartParser.Form form = uploadParser.parse(ex.getRequestBody(), boundary, videosDir.toPath())) {
+            String title = form.field("title"), summary = form.field("summary"), category = form.field("category");
+            MultipartParser.Part video = form.file("videoFile");
+            if (video == null || video.size() == 0 || title.isEmpty()) {
+                send(ex, 400, "application/json", "{\"success\":false,\"error\":\"Missing required fields or empty video\"}");
+                return;
+            }
             
-            int partEnd = nextBoundary;
-            // Remove trailing \r\n before next boundary
-            if (partEnd > 2 && bodyBytes[partEnd-1] == '\n' && bodyBytes[partEnd-2] == '\r') partEnd -= 2;
+            String origName = video.filename();
+            String ext = origName.contains(".") ? origName.substring(origName.lastIndexOf(".")) : ".mp4";
+            String videoFileName = System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0,8) + ext;
+            Files.move(video.file(), new File(videosDir, videoFileName).toPath());
             
-            if (partStart < partEnd) {
-                byte[] partBytes = Arrays.copyOfRange(bodyBytes, partStart, partEnd);
-                
-                // Find header/body separator (\r\n\r\n)
-                int headerEnd = indexOf(partBytes, "\r\n\r\n".getBytes(), 0);
-                if (headerEnd != -1) {
-                    String header = new String(partBytes, 0, headerEnd, StandardCharsets.UTF_8);
-                    int bodyStart = headerEnd + 4;
-                    
-                    if (header.contains("name=\"title\"")) {
-                        title = new String(partBytes, bodyStart, partBytes.length - bodyStart, StandardCharsets.UTF_8).trim();
-                    } else if (header.contains("name=\"summary\"")) {
-                        summary = new String(partBytes, bodyStart, partBytes.length - bodyStart, StandardCharsets.UTF_8).trim();
-                    } else if (header.contains("name=\"category\"")) {
-                        category = new String(partBytes, bodyStart, partBytes.length - bodyStart, StandardCharsets.UTF_8).trim();
-                    } else if (header.contains("name=\"videoFile\"")) {
-                        // Extract filename
-                        if (header.contains("filename=\"")) {
-                            int fnStart = header.indexOf("filename=\"") + 10;
-                            int fnEnd = header.indexOf("\"", fnStart);
-                            String origName = header.substring(fnStart, fnEnd);
-                            String ext = origName.contains(".") ? origName.substring(origName.lastIndexOf(".")) : ".mp4";
-                            videoFileName = System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0,8) + ext;
-                            
-                            // Video data is everything after the header
-                            videoData = Arrays.copyOfRange(partBytes, bodyStart, partBytes.length);
-                        }
-                    }
-                }
-            }
+            String videoUrl = "/videos/" + videoFileName;
+            dbManager.addLecture(title, summary, videoUrl, category, s.username);
             
-            pos = nextBoundary;
+            send(ex, 200, "application/json", "{\"success\":true,\"videoUrl\":\"" + videoUrl + "\"}");
+        } catch (MultipartParser.LimitExceededException e) {
+            send(ex, 413, "application/json", "{\"success\":false,\"error\":\"" + jsonEscape(e.getMessage()) + "\"}");
         }
-        
-        if (videoFileName.isEmpty() || videoData == null || videoData.length == 0 || title.isEmpty()) {
-            send(ex, 400, "application/json", "{\"success\":false,\"error\":\"Missing required fields or empty video\"}");
-            return;
-        }
-        
-        // Save video file
-        try (FileOutputStream fos = new FileOutputStream(new File(videosDir, videoFileName))) {
-            fos.write(videoData);
-        }
-        
-        String videoUrl = "/videos/" + videoFileName;
-        dbManager.addLecture(title, summary, videoUrl, category, s.username);
-        
-        send(ex, 200, "application/json", "{\"success\":true,\"videoUrl\":\"" + videoUrl + "\"}");
-    }
-    
-    // Helper method to find byte array in another byte array
-    private static int indexOf(byte[] source, byte[] target, int fromIndex) {
-        if (target.length == 0) return fromIndex;
-        if (target.length > source.length - fromIndex) return -1;
-        
-        outer: for (int i = fromIndex; i <= source.length - target.length; i++) {
-            for (int j = 0; j < target.length; j++) {
-                if (source[i + j] != target[j]) continue outer;
-            }
-            return i;
-        }
-        return -1;
     }
 
     private static void serveVideoFile(HttpExchange ex) throws IOException {
         String path = ex.getRequestURI().getPath();
         String fileName = path.substring("/videos/".length());
-        File videoFile = new File("videos", fileName);
+        File videoFile = FileStreamer.resolve("videos", fileName);
         
-        if (!videoFile.exists()) {
+        if (videoFile == null) {
             send(ex, 404, "text/plain", "Video not found");
             return;
         }
@@ -520,101 +516,53 @@ public class VirtualLabServer {
         else if (fileName.endsWith(".mov")) contentType = "video/quicktime";
         else if (fileName.endsWith(".avi")) contentType = "video/x-msvideo";
         
-        byte[] fileBytes = Files.readAllBytes(videoFile.toPath());
-        ex.getResponseHeaders().set("Content-Type", contentType);
-        ex.getResponseHeaders().set("Accept-Ranges", "bytes");
-        ex.sendResponseHeaders(200, fileBytes.length);
-        ex.getResponseBody().write(fileBytes);
-        ex.getResponseBody().close();
+        FileStreamer.stream(ex, videoFile, contentType, null);
     }
 
     // --- Study Materials Handlers ---
     private static void handleTeacherUploadMaterial(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         UserSession s = getSession(ex);
         
         File materialsDir = new File("materials");
         if (!materialsDir.exists()) materialsDir.mkdir();
         
-        String contentType = ex.getRequestHeaders().getFirst("Content-Type");
-        if (contentType == null || !contentType.contains("multipart/form-data")) {
+        String boundary = MultipartParser.boundaryOf(ex.getRequestHeaders().getFirst("Content-Type"));
+        if (boundary == null) {
             send(ex, 400, "application/json", "{\"success\":false,\"error\":\"Invalid content type\"}");
             return;
         }
         
-        String boundary = contentType.split("boundary=")[1];
-        byte[] bodyBytes = ex.getRequestBody().readAllBytes();
-        String body = new String(bodyBytes, StandardCharsets.UTF_8);
-        
-        String title = "", description = "", category = "";
-        String materialFileName = "", originalFileName = "", fileType = "";
-        byte[] fileData = null;
-        
-        String[] parts = body.split("--" + boundary);
-        for (String part : parts) {
-            if (part.contains("name=\"title\"")) {
-                title = part.split("\\r\\n\\r\\n")[1].trim().split("\\r\\n")[0];
-            } else if (part.contains("name=\"description\"")) {
-                description = part.split("\\r\\n\\r\\n")[1].trim().split("\\r\\n")[0];
-            } else if (part.contains("name=\"category\"")) {
-                category = part.split("\\r\\n\\r\\n")[1].trim().split("\\r\\n")[0];
-            } else if (part.contains("name=\"materialFile\"")) {
-                if (part.contains("filename=\"")) {
-                    int fnStart = part.indexOf("filename=\"") + 10;
-                    int fnEnd = part.indexOf("\"", fnStart);
-                    originalFileName = part.substring(fnStart, fnEnd);
-                    String ext = originalFileName.contains(".") ? originalFileName.substring(originalFileName.lastIndexOf(".")) : "";
-                    materialFileName = System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0,8) + ext;
-                    
-                    fileType = ext.replace(".", "").toUpperCase();
-                    if (fileType.isEmpty()) fileType = "FILE";
-                    
-                    String partHeader = part.split("\\r\\n\\r\\n")[0];
-                    int headerEndInBody = body.indexOf(partHeader) + partHeader.length() + 4;
-                    
-                    int dataStart = 0, dataEnd = 0;
-                    for (int i = 0, pos = 0; i < bodyBytes.length && pos <= headerEndInBody; i++) {
-                        if (bodyBytes[i] == body.charAt(pos)) pos++;
-                        else pos = 0;
-                        if (pos == headerEndInBody) { dataStart = i + 1; break; }
-                    }
-                    
-                    byte[] boundaryBytes = ("\r\n--" + boundary).getBytes(StandardCharsets.UTF_8);
-                    outer: for (int i = dataStart; i < bodyBytes.length - boundaryBytes.length; i++) {
-                        for (int j = 0; j < boundaryBytes.length; j++) {
-                            if (bodyBytes[i + j] != boundaryBytes[j]) continue outer;
-                        }
-                        dataEnd = i;
-                        break;
-                    }
-                    if (dataEnd > dataStart) {
-                        fileData = Arrays.copyOfRange(bodyBytes, dataStart, dataEnd);
-                    }
-                }
+        try (MultipartParser.Form form = uploadParser.parse(ex.getRequestBody(), boundary, materialsDir.toPath())) {
+            String title = form.field("title"), description = form.field("description"), category = form.field("category");
+            MultipartParser.Part material = form.file("materialFile");
+            if (material == null || title.isEmpty()) {
+                send(ex, 400, "application/json", "{\"success\":false,\"error\":\"Missing required fields\"}");
+                return;
             }
+            
+            String originalFileName = material.filename();
+            String ext = originalFileName.contains(".") ? originalFileName.substring(originalFileName.lastIndexOf(".")) : "";
+            String materialFileName = System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0,8) + ext;
+            String fileType = ext.replace(".", "").toUpperCase();
+            if (fileType.isEmpty()) fileType = "FILE";
+            Files.move(material.file(), new File(materialsDir, materialFileName).toPath());
+            
+            long size = material.size();
+            String fileSize = size < 1024 ? size + " B" : 
+                              size < 1024*1024 ? String.format("%.1f KB", size/1024.0) :
+                              String.format("%.1f MB", size/(1024.0*1024.0));
+            
+            String filePath = "/files/" + materialFileName;
+            dbManager.addMaterial(title, description, filePath, fileType, fileSize, category, s.username);
+            
+            send(ex, 200, "application/json", "{\"success\":true}");
+        } catch (MultipartParser.LimitExceededException e) {
+            send(ex, 413, "application/json", "{\"success\":false,\"error\":\"" + jsonEscape(e.getMessage()) + "\"}");
         }
-        
-        if (materialFileName.isEmpty() || fileData == null || title.isEmpty()) {
-            send(ex, 400, "application/json", "{\"success\":false,\"error\":\"Missing required fields\"}");
-            return;
-        }
-        
-        try (FileOutputStream fos = new FileOutputStream(new File(materialsDir, materialFileName))) {
-            fos.write(fileData);
-        }
-        
-        String fileSize = fileData.length < 1024 ? fileData.length + " B" : 
-                          fileData.length < 1024*1024 ? String.format("%.1f KB", fileData.length/1024.0) :
-                          String.format("%.1f MB", fileData.length/(1024.0*1024.0));
-        
-        String filePath = "/files/" + materialFileName;
-        dbManager.addMaterial(title, description, filePath, fileType, fileSize, category, s.username);
-        
-        send(ex, 200, "application/json", "{\"success\":true}");
     }
 
     private static void handleTeacherDeleteMaterial(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
         int id = Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id"));
         String filePath = dbManager.getMaterialFilePath(id);
         if (filePath != null && filePath.startsWith("/files/")) {
@@ -626,7 +574,6 @@ public class VirtualLabServer {
     }
 
     private static void handleMaterialDownload(HttpExchange ex) throws IOException {
-        if (!checkAuth(ex)) return;
         Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
         int id = Integer.parseInt(params.get("id"));
         String filePath = dbManager.getMaterialFilePath(id);
@@ -635,26 +582,20 @@ public class VirtualLabServer {
             return;
         }
         String fileName = filePath.substring("/files/".length());
-        File file = new File("materials", fileName);
-        if (!file.exists()) {
+        File file = FileStreamer.resolve("materials", fileName);
+        if (file == null) {
             send(ex, 404, "text/plain", "File not found");
             return;
         }
-        byte[] fileBytes = Files.readAllBytes(file.toPath());
-        ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
-        ex.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-        ex.sendResponseHeaders(200, fileBytes.length);
-        ex.getResponseBody().write(fileBytes);
-        ex.getResponseBody().close();
+        FileStreamer.stream(ex, file, "application/octet-stream", "attachment; filename=\"" + fileName + "\"");
     }
 
     private static void serveMaterialFile(HttpExchange ex) throws IOException {
-        if (!checkAuth(ex)) return;
         String path = ex.getRequestURI().getPath();
         String fileName = path.substring("/files/".length());
-        File file = new File("materials", fileName);
+        File file = FileStreamer.resolve("materials", fileName);
         
-        if (!file.exists()) {
+        if (file == null) {
             send(ex, 404, "text/plain", "File not found");
             return;
         }
@@ -668,11 +609,7 @@ public class VirtualLabServer {
         else if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) contentType = "image/jpeg";
         else if (fileName.endsWith(".png")) contentType = "image/png";
         
-        byte[] fileBytes = Files.readAllBytes(file.toPath());
-        ex.getResponseHeaders().set("Content-Type", contentType);
-        ex.sendResponseHeaders(200, fileBytes.length);
-        ex.getResponseBody().write(fileBytes);
-        ex.getResponseBody().close();
+        FileStreamer.stream(ex, file, contentType, null);
     }
 
     // --- Student Feedback Handlers ---
@@ -703,20 +640,16 @@ public class VirtualLabServer {
             send(ex, 401, "application/json", "{\"error\":\"Unauthorized\"}");
             return;
         }
-        String json = dbManager.getAllStudentFeedbackAsJson();
-        System.out.println("📤 Returning feedback JSON: " + json);
-        send(ex, 200, "application/json", json);
+        sendJson(ex, dbManager::writeAllStudentFeedbackJson);
     }
 
     private static void handleMarkFeedbackRead(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
         int id = Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id"));
         dbManager.markFeedbackAsRead(id);
         send(ex, 200, "application/json", "{\"success\":true}");
     }
 
     private static void handleDeleteStudentFeedback(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
         int id = Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id"));
         dbManager.deleteStudentFeedback(id);
         redirect(ex, "/teacher_menu");
@@ -724,13 +657,12 @@ public class VirtualLabServer {
 
     // === TEST MODULE HANDLERS ===
     private static void handleGetTestQuestions(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
-        send(ex, 200, "application/json", dbManager.getAllTestQuestionsAsJson());
+        catalog.serve(ex, "test_questions", dbManager::writeAllTestQuestionsJson, "test_questions");
     }
 
     @SuppressWarnings("unchecked")
     private static void handleAddTestQuestion(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         UserSession s = getSession(ex);
         String body = new String(ex.getRequestBody().readAllBytes());
         Map<String, Object> json = parseJson(body);
@@ -747,7 +679,7 @@ public class VirtualLabServer {
 
     @SuppressWarnings("unchecked")
     private static void handleUpdateTestQuestion(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         String body = new String(ex.getRequestBody().readAllBytes());
         Map<String, Object> json = parseJson(body);
         java.util.List<String> opts = (java.util.List<String>) json.get("options");
@@ -762,20 +694,19 @@ public class VirtualLabServer {
     }
 
     private static void handleDeleteTestQuestion(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
         int id = Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id"));
         dbManager.deleteTestQuestion(id);
         send(ex, 200, "application/json", "{\"success\":true}");
     }
 
     private static void handleScheduleTest(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         UserSession s = getSession(ex);
         String body = new String(ex.getRequestBody().readAllBytes());
         Map<String, Object> json = parseJson(body);
         int id = dbManager.scheduleTest(
             (String) json.get("title"), 
-            "", // subject not used
+            json.get("subject") instanceof String subject ? subject : "", // "" draws from every subject
             ((Number) json.get("duration")).intValue(), 
             ((Number) json.get("numQuestions")).intValue(), 
             (String) json.get("scheduledDate"), 
@@ -786,18 +717,17 @@ public class VirtualLabServer {
     }
 
     private static void handleGetScheduledTests(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
-        send(ex, 200, "application/json", dbManager.getAllScheduledTestsAsJson());
+        sendJson(ex, dbManager::writeAllScheduledTestsJson);
     }
 
     private static void handleUpdateScheduledTest(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "TEACHER")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         String body = new String(ex.getRequestBody().readAllBytes());
         Map<String, Object> json = parseJson(body);
         dbManager.updateScheduledTest(
             ((Number) json.get("id")).intValue(),
             (String) json.get("title"), 
-            "", 
+            json.get("subject") instanceof String subject ? subject : "", 
             ((Number) json.get("duration")).intValue(), 
             ((Number) json.get("numQuestions")).intValue(), 
             (String) json.get("scheduledDate"), 
@@ -808,66 +738,121 @@ public class VirtualLabServer {
     }
 
     private static void handleDeleteScheduledTest(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
         int id = Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("id"));
         dbManager.deleteScheduledTest(id);
+        exams.forget(id);
         send(ex, 200, "application/json", "{\"success\":true}");
     }
 
+    // Warmed by ExamCache ahead of each start, so the start-time burst is served from memory
     private static void handleGetActiveTests(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "STUDENT")) return;
-        send(ex, 200, "application/json", dbManager.getActiveTestsForStudent());
+        catalog.serve(ex, "active_tests", dbManager::writeActiveTestsJson, "scheduled_tests");
     }
 
     private static void handleStartTest(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "STUDENT")) return;
         UserSession s = getSession(ex);
         Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
         int testId = Integer.parseInt(params.get("testId"));
-        if(dbManager.hasStudentTakenTest(testId, s.username)) {
-            send(ex, 200, "application/json", "{\"success\":false,\"error\":\"already_taken\"}");
+        // one upsert starts the attempt, resumes one in progress, or refuses; only a refusal reads again, to say why
+        DatabaseManager.TestAttempt a = dbManager.startTestAttempt(testId, s.username, s.fullName);
+        if (a == null) {
+            if (dbManager.hasStudentTakenTest(testId, s.username)) send(ex, 200, "application/json", "{\"success\":false,\"error\":\"already_taken\"}");
+            else send(ex, 404, "application/json", "{\"success\":false,\"error\":\"no_such_test\"}");
             return;
         }
-        int resultId = dbManager.startTestResult(testId, s.username, s.fullName);
-        send(ex, 200, "application/json", "{\"success\":true,\"resultId\":" + resultId + "}");
+        // a resumed attempt keeps its original clock
+        long remaining = timers.register(a.resultId(), ExamTimers.epochMillis(a.startTime()), a.durationMinutes());
+        send(ex, 200, "application/json", "{\"success\":true,\"resultId\":" + a.resultId() + ",\"resumed\":" + a.resumed() + ",\"remainingSeconds\":" + remaining + "}");
     }
 
     private static void handleGetTestQuestionsForExam(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "STUDENT")) return;
         Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
         int testId = Integer.parseInt(params.get("testId"));
-        // Get the num_questions from the scheduled test
-        int count = dbManager.getScheduledTestQuestionCount(testId);
-        if (count <= 0) count = 10; // Default to 10
-        send(ex, 200, "application/json", dbManager.getRandomTestQuestions(count));
+        String username = getSession(ex).username;
+        // the paper is fixed per student, so it is only shown during the student's own attempt
+        if (!timers.isRunning(testId, username)) { send(ex, 403, "application/json", "{\"success\":false,\"error\":\"not_started\"}"); return; }
+        exams.serve(ex, testId, username);
+    }
+
+    // Teacher view of the paper a student was served, with the options they chose
+    private static void handleReplayExam(HttpExchange ex) throws IOException {
+        Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
+        int testId;
+        try { testId = Integer.parseInt(params.get("testId")); } catch (NumberFormatException e) { send(ex, 400, "text/plain", "Bad Request"); return; }
+        String student = params.get("student");
+        if (student == null || student.isEmpty()) { send(ex, 400, "text/plain", "Bad Request"); return; }
+        send(ex, 200, "application/json", dbManager.getExamReplayJson(testId, student));
+    }
+
+    // Edits to a question's key re-grade in the background; this runs one on demand and reports it
+    private static void handleRegradeTest(HttpExchange ex) throws IOException {
+        if (!"POST".equals(ex.getRequestMethod())) { send(ex, 405, "text/plain", "Method Not Allowed"); return; }
+        int testId;
+        try { testId = Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("testId")); } catch (NumberFormatException e) { send(ex, 400, "text/plain", "Bad Request"); return; }
+        TestRegrader.Report r = dbManager.regradeTest(testId);
+        if (r == null) { send(ex, 500, "application/json", "{\"success\":false}"); return; }
+        send(ex, 200, "application/json", "{\"success\":true,\"submissions\":" + r.submissions() + ",\"changed\":" + r.changed() + ",\"millis\":" + r.millis() + ",\"perSecond\":" + r.perSecond() + "}");
     }
 
     private static void handleSubmitTest(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "STUDENT")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         String body = new String(ex.getRequestBody().readAllBytes());
         Map<String, Object> json = parseJson(body);
         int resultId = ((Number) json.get("resultId")).intValue();
-        int score = ((Number) json.get("score")).intValue();
-        int total = ((Number) json.get("totalQuestions")).intValue();
         String videoPath = json.get("videoPath") != null ? (String) json.get("videoPath") : "";
-        String timeTaken = json.get("timeTaken") != null ? (String) json.get("timeTaken") : "";
-        dbManager.completeTestResult(resultId, score, total, videoPath, timeTaken);
-        send(ex, 200, "application/json", "{\"success\":true}");
+        // questionIds[i] was answered with choices[i] (-1 unanswered); both arrive as string arrays
+        int[] questionIds = null;
+        byte[] chosen = null;
+        if (json.get("questionIds") instanceof List<?> ids && json.get("choices") instanceof List<?> choices && ids.size() == choices.size() && ids.size() <= 500) {
+            questionIds = new int[ids.size()];
+            chosen = new byte[ids.size()];
+            try {
+                for (int i = 0; i < questionIds.length; i++) {
+                    questionIds[i] = Integer.parseInt(ids.get(i).toString());
+                    int c = Integer.parseInt(choices.get(i).toString());
+                    chosen[i] = c >= 0 && c < 4 ? (byte) c : ItemAnalysis.SKIPPED;
+                }
+            } catch (NumberFormatException e) { questionIds = null; chosen = null; }
+        }
+        // the clock is the server's: a submit after the deadline (plus grace) is refused, and the
+        // time taken is measured from the start request rather than read from the client
+        String username = getSession(ex).username;
+        ExamTimers.Finished done = timers.finish(resultId, username);
+        if (done == null) { send(ex, 200, "application/json", "{\"success\":false,\"error\":\"time_expired\"}"); return; }
+        // graded here against the answer key; any score the client sends is ignored, and only
+        // responses to questions on the test's paper are stored
+        AnswerKeys.Grade grade = dbManager.gradeTest(done.testId(), questionIds, chosen);
+        String timeTaken = ExamTimers.minutes(done.elapsedMillis());
+        if (!dbManager.completeTestResult(resultId, grade.score(), grade.total(), videoPath, timeTaken, grade.questionIds(), grade.chosen())) {
+            // the row is still in progress, so the attempt keeps running and its deadline still expires it
+            send(ex, 200, "application/json", "{\"success\":false,\"error\":\"not_saved\"}");
+            return;
+        }
+        timers.completed(resultId);
+        send(ex, 200, "application/json", "{\"success\":true,\"score\":" + grade.score() + ",\"total\":" + grade.total() + ",\"timeTaken\":\"" + timeTaken + "\"}");
     }
 
     private static void handleGetTestResults(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
-        send(ex, 200, "application/json", dbManager.getAllTestResultsAsJson());
+        Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
+        if (params.containsKey("limit") || params.containsKey("cursor")) { sendPage(ex, params, dbManager::writeTestResultsPageJson); return; }
+        sendJson(ex, dbManager::writeAllTestResultsJson);
+    }
+
+    // whole-set figures for the results tab's stat cards; ?testId= narrows them to one test
+    private static void handleTestResultsSummary(HttpExchange ex) throws IOException {
+        String testId = parseQuery(ex.getRequestURI().getQuery()).getOrDefault("testId", "all");
+        int id;
+        try { id = testId.equals("all") ? 0 : Integer.parseInt(testId); } catch (NumberFormatException e) { send(ex, 400, "text/plain", "Bad Request"); return; }
+        sendJson(ex, json -> dbManager.writeTestResultsSummaryJson(json, id));
     }
 
     private static void handleGetStudentResults(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "STUDENT")) return;
         UserSession s = getSession(ex);
-        send(ex, 200, "application/json", dbManager.getStudentTestResults(s.username));
+        sendJson(ex, json -> dbManager.writeStudentTestResultsJson(json, s.username));
     }
 
     private static void handleUploadTestVideo(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "STUDENT")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         UserSession s = getSession(ex);
         
         // Create test_videos directory if it doesn't exist
@@ -878,78 +863,112 @@ public class VirtualLabServer {
         String filename = "test_" + s.username + "_" + System.currentTimeMillis() + ".webm";
         java.io.File videoFile = new java.io.File(videoDir, filename);
         
-        // Read all data from request body
-        byte[] allData = ex.getRequestBody().readAllBytes();
-        
-        // Parse multipart form data to extract the video bytes
-        String contentType = ex.getRequestHeaders().getFirst("Content-Type");
-        if (contentType != null && contentType.contains("multipart/form-data")) {
-            String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
-            byte[] boundaryBytes = ("--" + boundary).getBytes();
-            
-            // Find the start of the video content (after the headers)
-            int dataStart = -1;
-            for (int i = 0; i < allData.length - 4; i++) {
-                // Look for \r\n\r\n which marks end of headers
-                if (allData[i] == '\r' && allData[i+1] == '\n' && allData[i+2] == '\r' && allData[i+3] == '\n') {
-                    dataStart = i + 4;
-                    break;
-                }
-            }
-            
-            // Find the end boundary
-            int dataEnd = allData.length;
-            for (int i = dataStart; i < allData.length - boundaryBytes.length; i++) {
-                boolean found = true;
-                for (int j = 0; j < boundaryBytes.length && found; j++) {
-                    if (allData[i + j] != boundaryBytes[j]) found = false;
-                }
-                if (found) {
-                    dataEnd = i - 2; // -2 for the \r\n before boundary
-                    break;
+        String boundary = MultipartParser.boundaryOf(ex.getRequestHeaders().getFirst("Content-Type"));
+        try {
+            if (boundary != null) {
+                try (MultipartParser.Form form = uploadParser.parse(ex.getRequestBody(), boundary, videoDir.toPath())) {
+                    MultipartParser.Part video = form.file("video");
+                    if (video != null && video.size() > 0) Files.move(video.file(), videoFile.toPath());
                 }
-            }
-            
-            if (dataStart > 0 && dataEnd > dataStart) {
-                try (java.io.FileOutputStream fos = new java.io.FileOutputStream(videoFile)) {
-                    fos.write(allData, dataStart, dataEnd - dataStart);
+            } else {
+                // Raw video data
+                try (OutputStream os = Files.newOutputStream(videoFile.toPath())) {
+                    if (copyLimited(ex.getRequestBody(), os, MAX_UPLOAD_BYTES) == 0) videoFile.delete();
+                } catch (MultipartParser.LimitExceededException e) {
+                    videoFile.delete();
+                    throw e;
                 }
             }
-        } else {
-            // Raw video data
-            try (java.io.FileOutputStream fos = new java.io.FileOutputStream(videoFile)) {
-                fos.write(allData);
-            }
+        } catch (MultipartParser.LimitExceededException e) {
+            send(ex, 413, "application/json", "{\"success\":false,\"error\":\"" + jsonEscape(e.getMessage()) + "\"}");
+            return;
         }
         
         send(ex, 200, "application/json", "{\"success\":true,\"videoPath\":\"" + filename + "\"}");
     }
 
+    private static long copyLimited(InputStream in, OutputStream out, long limit) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+            if (total > limit) throw new MultipartParser.LimitExceededException("Request body exceeds " + limit + " bytes");
+            out.write(buffer, 0, n);
+        }
+        return total;
+    }
+
+    // Chunked recording ingest: one small append per MediaRecorder chunk instead of one big upload at the end
+    private static void handleVideoChunk(HttpExchange ex) throws IOException {
+        if(!"POST".equals(ex.getRequestMethod())) return;
+        UserSession s = getSession(ex);
+        Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
+        int resultId = Integer.parseInt(params.get("resultId"));
+        int seq = Integer.parseInt(params.get("seq"));
+        if (seq < 0 || !ownsTestResult(s, resultId)) {
+            send(ex, 403, "application/json", "{\"success\":false,\"error\":\"Forbidden\"}");
+            return;
+        }
+        // once the attempt is submitted or expired the recording is evidence and stays as it is
+        if (!timers.isRunning(resultId)) { send(ex, 409, "application/json", "{\"success\":false,\"error\":\"not_in_progress\"}"); return; }
+        try {
+            int received = videoChunks.append(resultId, seq, ex.getRequestBody());
+            send(ex, 200, "application/json", "{\"success\":true,\"seq\":" + seq + ",\"received\":" + received + "}");
+        } catch (MultipartParser.LimitExceededException e) {
+            send(ex, 413, "application/json", "{\"success\":false,\"error\":\"" + jsonEscape(e.getMessage()) + "\"}");
+        }
+    }
+
+    private static void handleVideoChunkStatus(HttpExchange ex) throws IOException {
+        int resultId = Integer.parseInt(parseQuery(ex.getRequestURI().getQuery()).get("resultId"));
+        if (!ownsTestResult(getSession(ex), resultId)) {
+            send(ex, 403, "application/json", "{\"success\":false,\"error\":\"Forbidden\"}");
+            return;
+        }
+        send(ex, 200, "application/json", "{\"success\":true,\"received\":" + videoChunks.received(resultId) + "}");
+    }
+
+    private static void handleVideoFinalize(HttpExchange ex) throws IOException {
+        if(!"POST".equals(ex.getRequestMethod())) return;
+        UserSession s = getSession(ex);
+        Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
+        int resultId = Integer.parseInt(params.get("resultId"));
+        int chunks = Integer.parseInt(params.getOrDefault("chunks", "0"));
+        if (!ownsTestResult(s, resultId)) {
+            send(ex, 403, "application/json", "{\"success\":false,\"error\":\"Forbidden\"}");
+            return;
+        }
+        if (!timers.isRunning(resultId)) { send(ex, 409, "application/json", "{\"success\":false,\"error\":\"not_in_progress\"}"); return; }
+        VideoChunkStore.FinalizeResult r = videoChunks.finalizeRecording(resultId, chunks, VideoChunkStore.videoFileName(s.username, resultId));
+        if (r.videoPath() != null) send(ex, 200, "application/json", "{\"success\":true,\"videoPath\":\"" + r.videoPath() + "\"}");
+        else send(ex, 200, "application/json", "{\"success\":false,\"missing\":" + r.missing() + "}");
+    }
+
+    private static boolean ownsTestResult(UserSession s, int resultId) {
+        String owner = testResultOwners.get(resultId);
+        if (owner == null) {
+            owner = dbManager.getTestResultOwner(resultId);
+            if (owner == null) return false;
+            testResultOwners.put(resultId, owner);
+        }
+        return owner.equals(s.username);
+    }
+
     private static void serveTestVideo(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "TEACHER")) return;
         String path = ex.getRequestURI().getPath();
         String filename = path.substring("/api/test/video/".length());
-        java.io.File videoFile = new java.io.File("test_videos", filename);
+        java.io.File videoFile = FileStreamer.resolve("test_videos", filename);
         
-        if (!videoFile.exists()) {
+        if (videoFile == null) {
             send(ex, 404, "text/plain", "Video not found");
             return;
         }
         
-        ex.getResponseHeaders().set("Content-Type", "video/webm");
-        ex.sendResponseHeaders(200, videoFile.length());
-        try (java.io.FileInputStream fis = new java.io.FileInputStream(videoFile);
-             java.io.OutputStream os = ex.getResponseBody()) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                os.write(buffer, 0, bytesRead);
-            }
-        }
+        FileStreamer.stream(ex, videoFile, "video/webm", null);
     }
 
     private static void handleGetQuestionCount(HttpExchange ex) throws IOException {
-        if(!checkAuth(ex)) return;
         Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
         String subject = params.get("subject") != null ? params.get("subject") : "all";
         int count = dbManager.getTestQuestionCount(subject);
@@ -957,7 +976,6 @@ public class VirtualLabServer {
     }
 
     private static void handleCheckTestTaken(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "STUDENT")) return;
         UserSession s = getSession(ex);
         Map<String, String> params = parseQuery(ex.getRequestURI().getQuery());
         int testId = Integer.parseInt(params.get("testId"));
@@ -967,7 +985,6 @@ public class VirtualLabServer {
 
     // --- Admin Handlers ---
     private static void handleAdminGetUsers(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "ADMIN")) return;
         List<User> users = dbManager.getUsersByRole("TEACHER"); users.addAll(dbManager.getUsersByRole("STUDENT"));
         StringBuilder json = new StringBuilder("[");
         for(int i=0; i<users.size(); i++) {
@@ -977,29 +994,28 @@ public class VirtualLabServer {
         json.append("]"); send(ex, 200, "application/json", json.toString());
     }
     private static void handleAdminAddUser(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "ADMIN")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         Map<String, String> f = parseQuery(new String(ex.getRequestBody().readAllBytes()));
         dbManager.createUser(new User(f.get("username"), f.get("password"), f.get("role"), f.get("fullName"), "")); 
         redirect(ex, "/admin_menu");
     }
     private static void handleAdminUpdateUser(HttpExchange ex) throws IOException {
-        if(!"POST".equals(ex.getRequestMethod()) || !checkRole(ex, "ADMIN")) return;
+        if(!"POST".equals(ex.getRequestMethod())) return;
         Map<String, String> f = parseQuery(new String(ex.getRequestBody().readAllBytes()));
         dbManager.updateUser(f.get("username"), f.get("password"), f.get("fullName"), f.get("role")); redirect(ex, "/admin_menu");
     }
     private static void handleAdminDeleteUser(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "ADMIN")) return;
-        dbManager.deleteUser(parseQuery(ex.getRequestURI().getQuery()).get("username")); redirect(ex, "/admin_menu");
+        String username = parseQuery(ex.getRequestURI().getQuery()).get("username");
+        dbManager.deleteUser(username); sessions.removeUser(username); redirect(ex, "/admin_menu");
     }
     private static void handleAdminGetFeedback(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "ADMIN")) return;
         List<String> fbs = dbManager.getAllFeedback();
         StringBuilder json = new StringBuilder("[");
         for(int i=0; i<fbs.size(); i++) { json.append("\"").append(fbs.get(i)).append("\""); if(i < fbs.size()-1) json.append(","); }
         json.append("]"); send(ex, 200, "application/json", json.toString());
     }
     private static void handleAdminClearFeedback(HttpExchange ex) throws IOException {
-        if(!checkRole(ex, "ADMIN")) return; dbManager.clearFeedback(); redirect(ex, "/admin_menu");
+        dbManager.clearFeedback(); redirect(ex, "/admin_menu");
     }
 
     // --- Experiments ---
@@ -1039,10 +1055,15 @@ public class VirtualLabServer {
 
     // --- Quiz ---
     private static void handleGetQuiz(HttpExchange ex) throws IOException {
-        if (!checkAuth(ex)) return; UserSession session = getSession(ex);
+        UserSession session = getSession(ex);
         String topic = parseQuery(ex.getRequestURI().getQuery()).getOrDefault("topic", "physics");
         List<Question> questions = dbManager.getRandomQuestions(topic, 5);
-        session.currentQuiz = questions;
+        int[] ids = new int[questions.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = questions.get(i).id();
+        session.quizTopic = questions.isEmpty() ? topic : questions.get(0).topic();
+        session.quizQuestionIds = ids;
+        String reissued = sessions.reissue(SessionFilter.token(ex), session);
+        if (reissued != null) setSessionCookie(ex, reissued);
         StringBuilder json = new StringBuilder("[");
         for(int i=0; i<questions.size(); i++){
             Question q = questions.get(i);
@@ -1060,40 +1081,74 @@ public class VirtualLabServer {
     }
     private static void handleSubmitQuiz(HttpExchange ex) throws IOException {
         if (!"POST".equals(ex.getRequestMethod())) return; UserSession session = getSession(ex);
-        if (session == null || session.currentQuiz == null) return;
+        int[] ids = session == null ? null : session.quizQuestionIds;
+        if (ids == null || ids.length == 0) return;
         String body = new String(ex.getRequestBody().readAllBytes()); Map<String, String> answers = parseQuery(body);
+        // graded against the bank as it is now; a question deleted meanwhile counts as wrong
         int score = 0;
-        for (int i = 0; i < session.currentQuiz.size(); i++) {
+        byte[] chosen = new byte[ids.length];
+        for (int i = 0; i < ids.length; i++) {
             String ans = answers.get("question-" + i);
-            if (ans != null && Integer.parseInt(ans) == session.currentQuiz.get(i).correctIndex()) score++;
+            chosen[i] = ans == null ? ItemAnalysis.SKIPPED : (byte) Integer.parseInt(ans);
+            Question q = dbManager.getQuizQuestion(ids[i]);
+            if (q != null && chosen[i] == q.correctIndex()) score++;
         }
-        dbManager.saveQuizPerformance(new QuizPerformance(session.username, session.currentQuiz.get(0).topic(), score, session.currentQuiz.size(), LocalDateTime.now()));
-        session.currentQuiz = null;
+        // the quiz is spent before it is saved
+        session.quizQuestionIds = null;
+        String reissued = sessions.reissue(SessionFilter.token(ex), session);
+        if (reissued != null) setSessionCookie(ex, reissued);
+        dbManager.saveQuizPerformance(new QuizPerformance(session.username, session.quizTopic, score, ids.length, LocalDateTime.now()), ids, chosen);
         send(ex, 200, "application/json", "{\"score\": " + score + "}");
     }
 
     // --- Data ---
     private static void handleDashboardData(HttpExchange ex) throws IOException {
-        if (!checkAuth(ex)) return; UserSession s = getSession(ex); List<QuizPerformance> scores = dbManager.getPerformance(s.username);
+        UserSession s = getSession(ex); List<QuizPerformance> scores = dbManager.getPerformance(s.username, 20);
         StringBuilder json = new StringBuilder("{\"fullName\": \"" + s.fullName + "\", \"recentScores\": [");
         for(int i=0; i<scores.size(); i++) {
             QuizPerformance p = scores.get(i);
             json.append(String.format("{\"topic\":\"%s\", \"score\":%d, \"total\":%d}", p.topic(), p.score(), p.total()));
             if(i < scores.size()-1) json.append(",");
         }
-        json.append("], \"averageScores\": {} }"); send(ex, 200, "application/json", json.toString());
+        // percentages per topic from the aggregate tables; classAverage is the same topic over all students
+        json.append("], \"averageScores\": {");
+        List<ScoreAggregates.Aggregate> mine = dbManager.getScoreAggregates(s.username);
+        Map<String, ScoreAggregates.Aggregate> everyone = mine.isEmpty() ? Map.of() : dbManager.getTopicAggregates();
+        for(int i=0; i<mine.size(); i++) {
+            ScoreAggregates.Aggregate a = mine.get(i), c = everyone.get(a.topic());
+            json.append(String.format(Locale.ROOT, "\"%s\": {\"attempts\":%d, \"average\":%.1f, \"min\":%.1f, \"max\":%.1f, \"recentAverage\":%.1f, \"classAverage\":%.1f}",
+                a.topic(), a.attempts(), a.average(), a.minPct(), a.maxPct(), a.recentAverage(), c != null ? c.average() : a.average()));
+            if(i < mine.size()-1) json.append(",");
+        }
+        json.append("} }"); send(ex, 200, "application/json", json.toString());
     }
 
     // --- Utilities ---
-    private static boolean checkAuth(HttpExchange ex) throws IOException { if (getSession(ex) != null) return true; redirect(ex, "/login"); return false; }
-    private static boolean checkRole(HttpExchange ex, String role) throws IOException { UserSession s = getSession(ex); if (s != null && s.role.equals(role)) return true; redirect(ex, "/login"); return false; }
-    private static boolean checkRoleMulti(HttpExchange ex, String... roles) throws IOException { UserSession s = getSession(ex); if (s != null) { for(String role : roles) { if(s.role.equals(role)) return true; } } redirect(ex, "/login"); return false; }
-    private static String getSessionRole(HttpExchange ex) { UserSession s = getSession(ex); return (s != null) ? s.role : null; }
-    private static UserSession getSession(HttpExchange ex) { String c = ex.getRequestHeaders().getFirst("Cookie"); if (c != null && c.contains("token=")) return sessionDatabase.get(c.split("token=")[1].split(";")[0]); return null; }
-    private static String getCookie(HttpExchange ex) { String c = ex.getRequestHeaders().getFirst("Cookie"); return (c != null && c.contains("token=")) ? c.split("token=")[1].split(";")[0] : null; }
+    private static HttpContext route(HttpServer server, String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(admission.filterFor(path));
+        SessionFilter.Access access = ACCESS.get(path);
+        if (access == null) throw new IllegalStateException("No access rule for route " + path);
+        context.getFilters().add(new SessionFilter(sessions, access));
+        return context;
+    }
+    private static void allow(SessionFilter.Access access, String... paths) { for (String p : paths) ACCESS.put(p, access); }
+    private static void setSessionCookie(HttpExchange ex, String token) { ex.getResponseHeaders().set("Set-Cookie", "token=" + token + "; HttpOnly; Path=/"); }
+    private static UserSession getSession(HttpExchange ex) { return SessionFilter.session(ex); }
     private static void redirect(HttpExchange ex, String loc) throws IOException { ex.getResponseHeaders().set("Location", loc); ex.sendResponseHeaders(302, -1); }
+    // chunked: rows go to the socket as they are read, through the writer's one buffer. Closed only
+    // on success: a failed read drops the connection without the last chunk, so the client sees an
+    // error instead of a short but well-formed body.
+    private static void sendJson(HttpExchange ex, JsonStreamWriter.Source body) throws IOException { ex.getResponseHeaders().set("Content-Type", "application/json"); ex.sendResponseHeaders(200, 0); JsonStreamWriter json = new JsonStreamWriter(ex.getResponseBody()); body.writeTo(json); json.close(); }
+    // keyset-paginated list; without limit/cursor the handlers above keep returning the full legacy array
+    private interface PageWriter { void write(JsonStreamWriter json, PageQuery q) throws IOException; }
+    private static void sendPage(HttpExchange ex, Map<String, String> params, PageWriter page) throws IOException {
+        PageQuery q;
+        try { q = PageQuery.fromParams(params); } catch (RuntimeException e) { send(ex, 400, "text/plain", "Bad Request"); return; }
+        sendJson(ex, json -> page.write(json, q));
+    }
     private static void send(HttpExchange ex, int code, String type, String body) throws IOException { byte[] bytes = body.getBytes(StandardCharsets.UTF_8); ex.getResponseHeaders().set("Content-Type", type); ex.sendResponseHeaders(code, bytes.length); ex.getResponseBody().write(bytes); ex.getResponseBody().close(); }
-    private static void serveFile(HttpExchange ex, String f, String type) throws IOException { try { send(ex, 200, type, new String(Files.readAllBytes(Paths.get(f)), StandardCharsets.UTF_8)); } catch (Exception e) { send(ex, 404, "text/plain", "File missing: " + f); } }
+    private static void serveFile(HttpExchange ex, String f, String type) throws IOException { staticAssets.serve(ex, f, type); }
     private static Map<String, String> parseQuery(String q) { Map<String, String> map = new HashMap<>(); if (q == null) return map; for (String s : q.split("&")) { String[] p = s.split("="); if(p.length==2) { try { map.put(URLDecoder.decode(p[0], "UTF-8"), URLDecoder.decode(p[1], "UTF-8")); } catch(Exception e) {} } } return map; }
     private static String readFile(String f) throws IOException { return new String(Files.readAllBytes(Paths.get(f)), StandardCharsets.UTF_8); }
 }
\ No newline at end of file